@@ -9,15 +9,14 @@ import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.os.Binder;
 import android.os.IBinder;
+import android.os.SystemClock;
 import android.support.v4.app.NotificationCompat;
 import android.util.Log;
 
-import java.io.BufferedReader;
 import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -27,31 +26,27 @@ import java.util.List;
 import java.util.Set;
 import java.util.WeakHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.zip.GZIPInputStream;
 
 import javax.crypto.BadPaddingException;
-import javax.crypto.Cipher;
-import javax.crypto.CipherInputStream;
-import javax.crypto.spec.IvParameterSpec;
-import javax.crypto.spec.SecretKeySpec;
 
 import eu.siacs.conversations.Config;
 import eu.siacs.conversations.R;
+import eu.siacs.conversations.persistance.BulkInserter;
 import eu.siacs.conversations.persistance.DatabaseBackend;
 import eu.siacs.conversations.persistance.FileBackend;
 import eu.siacs.conversations.ui.ManageAccountActivity;
 import eu.siacs.conversations.utils.BackupFileHeader;
-import eu.siacs.conversations.utils.Compatibility;
+import eu.siacs.conversations.utils.BackupFileReader;
+import eu.siacs.conversations.utils.BackupRowReader;
 import eu.siacs.conversations.utils.SerialSingleThreadExecutor;
+import eu.siacs.conversations.utils.SqlBackupReader;
 import rocks.xmpp.addr.Jid;
 
-import static eu.siacs.conversations.services.ExportBackupService.CIPHERMODE;
-import static eu.siacs.conversations.services.ExportBackupService.KEYTYPE;
-import static eu.siacs.conversations.services.ExportBackupService.PROVIDER;
-
 public class ImportBackupService extends Service {
 
     private static final int NOTIFICATION_ID = 21;
+    private static final int PROGRESS_INTERVAL = 500;
+    private static final long PROGRESS_UPDATE_INTERVAL = 1000;
     private static AtomicBoolean running = new AtomicBoolean(false);
     private final ImportBackupServiceBinder binder = new ImportBackupServiceBinder();
     private final SerialSingleThreadExecutor executor = new SerialSingleThreadExecutor(getClass().getSimpleName());
@@ -59,16 +54,6 @@ public class ImportBackupService extends Service {
     private DatabaseBackend mDatabaseBackend;
     private NotificationManager notificationManager;
 
-    private static int count(String input, char c) {
-        int count = 0;
-        for (char aChar : input.toCharArray()) {
-            if (aChar == c) {
-                ++count;
-            }
-        }
-        return count;
-    }
-
     @Override
     public void onCreate() {
         mDatabaseBackend = DatabaseBackend.getInstance(getBaseContext());
@@ -149,39 +134,25 @@ public class ImportBackupService extends Service {
         Log.d(Config.LOGTAG, "importing backup from file " + file.getAbsolutePath());
         try {
             SQLiteDatabase db = mDatabaseBackend.getWritableDatabase();
-            final FileInputStream fileInputStream = new FileInputStream(file);
-            final DataInputStream dataInputStream = new DataInputStream(fileInputStream);
-            BackupFileHeader backupFileHeader = BackupFileHeader.read(dataInputStream);
+            final BackupFileHeader backupFileHeader = BackupFile.read(file).getHeader();
             Log.d(Config.LOGTAG, backupFileHeader.toString());
-
-            final Cipher cipher = Compatibility.twentyEight() ? Cipher.getInstance(CIPHERMODE) : Cipher.getInstance(CIPHERMODE, PROVIDER);
-            byte[] key = ExportBackupService.getKey(password, backupFileHeader.getSalt());
-            SecretKeySpec keySpec = new SecretKeySpec(key, KEYTYPE);
-            IvParameterSpec ivSpec = new IvParameterSpec(backupFileHeader.getIv());
-            cipher.init(Cipher.DECRYPT_MODE, keySpec, ivSpec);
-            CipherInputStream cipherInputStream = new CipherInputStream(fileInputStream, cipher);
-
-            GZIPInputStream gzipInputStream = new GZIPInputStream(cipherInputStream);
-            BufferedReader reader = new BufferedReader(new InputStreamReader(gzipInputStream, "UTF-8"));
-            String line;
-            StringBuilder multiLineQuery = null;
-            while ((line = reader.readLine()) != null) {
-                int count = count(line, '\'');
-                if (multiLineQuery != null) {
-                    multiLineQuery.append('\n');
-                    multiLineQuery.append(line);
-                    if (count % 2 == 1) {
-                        db.execSQL(multiLineQuery.toString());
-                        multiLineQuery = null;
-                    }
-                } else {
-                    if (count % 2 == 0) {
-                        db.execSQL(line);
-                    } else {
-                        multiLineQuery = new StringBuilder(line);
-                    }
-                }
+            final BackupRowReader reader;
+            if (backupFileHeader.getVersion() == BackupFileHeader.VERSION_SQL) {
+                reader = new SqlBackupReader(file, password);
+            } else {
+                reader = new BackupFileReader(file, password);
             }
+            try {
+                bulkImport(reader, file.length());
+            } finally {
+                reader.close();
+            }
+            //the search index has been left alone during the bulk load and catches up in one go
+            notifyProgress(-1, null);
+            final long start = SystemClock.elapsedRealtime();
+            final int indexed = mDatabaseBackend.getSearchIndex().update();
+            Log.d(Config.LOGTAG, "indexed " + indexed + " restored messages in " + (SystemClock.elapsedRealtime() - start) + "ms");
+            mDatabaseBackend.checkpoint(true);
             final Jid jid = backupFileHeader.getJid();
             Cursor countCursor = db.rawQuery("select count(messages.uuid) from messages join conversations on conversations.uuid=messages.conversationUuid join accounts on conversations.accountUuid=accounts.uuid where accounts.username=? and accounts.server=?", new String[]{jid.getEscapedLocal(), jid.getDomain()});
             countCursor.moveToFirst();
@@ -217,6 +188,41 @@ public class ImportBackupService extends Service {
         }
     }
 
+    private void bulkImport(final BackupRowReader reader, final long size) throws IOException {
+        final BulkInserter inserter = new BulkInserter(mDatabaseBackend.getWritableDatabase());
+        final long start = SystemClock.elapsedRealtime();
+        long lastUpdate = 0;
+        int percentage = -1;
+        try {
+            while (reader.next()) {
+                inserter.insert(reader.getTable(), reader.getColumns(), reader.getValues());
+                if (inserter.getRows() % PROGRESS_INTERVAL == 0) {
+                    final long now = SystemClock.elapsedRealtime();
+                    final int p = size <= 0 ? 0 : (int) (reader.getBytesRead() * 100 / size);
+                    if (p > percentage || now - lastUpdate >= PROGRESS_UPDATE_INTERVAL) {
+                        percentage = p;
+                        lastUpdate = now;
+                        final double megabytesPerSecond = reader.getBytesRead() * 1000.0 / Math.max(1, now - start) / (1024 * 1024);
+                        notifyProgress(percentage, getString(R.string.notification_backup_throughput, inserter.getRowsPerSecond(), megabytesPerSecond));
+                    }
+                }
+            }
+            inserter.commit();
+        } finally {
+            inserter.close();
+        }
+        Log.d(Config.LOGTAG, "imported backup (" + inserter + ", " + reader.getBytesRead() + " bytes read)");
+    }
+
+    private void notifyProgress(final int percentage, final String text) {
+        NotificationCompat.Builder mBuilder = new NotificationCompat.Builder(getBaseContext(), "backup");
+        mBuilder.setContentTitle(getString(R.string.restoring_backup))
+                .setSmallIcon(R.drawable.ic_unarchive_white_24dp)
+                .setProgress(100, percentage, percentage < 0)
+                .setContentText(text);
+        notificationManager.notify(NOTIFICATION_ID, mBuilder.build());
+    }
+
     private void notifySuccess() {
         NotificationCompat.Builder mBuilder = new NotificationCompat.Builder(getBaseContext(), "backup");
         mBuilder.setContentTitle(getString(R.string.notification_restored_backup_title))
@@ -69,6 +69,8 @@ public final class Config {
     public static final int CONNECT_TIMEOUT = 90;
     public static final int POST_CONNECTIVITY_CHANGE_PING_INTERVAL = 30;
     public static final int CONNECT_DISCO_TIMEOUT = 20;
+    public static final int IQ_TIMEOUT = 120; //iq callbacks are called with a timeout packet if there is no response
+    public static final int MAM_IQ_TIMEOUT = 600; //servers may take a while to page through large archives
     public static final int MINI_GRACE_PERIOD = 750;
 
     public static final boolean XEP_0392 = true; //enables XEP-0392 v0.6.0
@@ -85,6 +87,7 @@ public final class Config {
 
     public static final int PAGE_SIZE = 50;
     public static final int MAX_NUM_PAGES = 3;
+    public static final int MAX_HOT_CONVERSATIONS = 5; //conversations that keep their messages on moderate memory pressure
     public static final int MAX_SEARCH_RESULTS = 300;
 
     public static final int REFRESH_UI_INTERVAL = 500;
@@ -105,6 +108,7 @@ public final class Config {
     public static final boolean EXTENDED_SM_LOGGING = false; // log stanza counts
     public static final boolean BACKGROUND_STANZA_LOGGING = false; //log all stanzas that were received while the app is in background
     public static final boolean RESET_ATTEMPT_COUNT_ON_NETWORK_CHANGE = true; //setting to true might increase power consumption
+    public static final boolean USE_STREAM_COMPRESSION = false; //XEP-0138 zlib after authentication. compression under TLS is susceptible to CRIME style attacks
 
     public static final boolean ENCRYPT_ON_HTTP_UPLOADED = false;
 
@@ -68,6 +68,8 @@ public class AxolotlService implements OnAdvancedStreamFeaturesLoaded {
 	public static final String LOGPREFIX = "AxolotlService";
 
 	public static final int NUM_KEYS_TO_PUBLISH = 100;
+	private static final long DEVICE_LIST_TTL = 24 * 60 * 60 * 1000;
+	private static final long BUNDLE_ERROR_TTL = 6 * 60 * 60 * 1000;
 	public static final int publishTriesThreshold = 3;
 
 	private final Account account;
@@ -77,6 +79,7 @@ public class AxolotlService implements OnAdvancedStreamFeaturesLoaded {
 	private final Map<Jid, Set<Integer>> deviceIds;
 	private final Map<String, XmppAxolotlMessage> messageCache;
 	private final FetchStatusMap fetchStatusMap;
+	private final FetchScheduler fetchScheduler;
 	private final Map<Jid, Boolean> fetchDeviceListStatus = new HashMap<>();
 	private final HashMap<Jid, List<OnDeviceIdsFetched>> fetchDeviceIdsMap = new HashMap<>();
 	private final SerialSingleThreadExecutor executor;
@@ -309,7 +312,38 @@ public class AxolotlService implements OnAdvancedStreamFeaturesLoaded {
 		this.messageCache = new HashMap<>();
 		this.sessions = new SessionMap(mXmppConnectionService, axolotlStore, account);
 		this.fetchStatusMap = new FetchStatusMap();
+		this.fetchScheduler = new FetchScheduler(account, connectionService);
 		this.executor = new SerialSingleThreadExecutor("Axolotl");
+		restoreFetchResults();
+	}
+
+	/**
+	 * Restores the device lists of our contacts and the bundles known to be unavailable from the
+	 * previous run, so they are not fetched again until they expire.
+	 */
+	private void restoreFetchResults() {
+		final Set<SignalProtocolAddress> bundleErrors = new HashSet<>();
+		final Map<String, Set<Integer>> deviceLists = axolotlStore.loadDeviceLists(DEVICE_LIST_TTL, bundleErrors, BUNDLE_ERROR_TTL);
+		final String own = account.getJid().asBareJid().toString();
+		for (Map.Entry<String, Set<Integer>> entry : deviceLists.entrySet()) {
+			if (own.equals(entry.getKey())) {
+				continue;
+			}
+			try {
+				deviceIds.put(Jid.of(entry.getKey()), entry.getValue());
+			} catch (IllegalArgumentException e) {
+				//ignored
+			}
+		}
+		for (SignalProtocolAddress address : bundleErrors) {
+			fetchStatusMap.put(address, FetchStatus.ERROR);
+		}
+		Log.d(Config.LOGTAG, getLogprefix(account) + "restored " + deviceLists.size() + " device lists and " + bundleErrors.size() + " unavailable bundles");
+	}
+
+	private void markBundleUnavailable(final SignalProtocolAddress address) {
+		fetchStatusMap.put(address, FetchStatus.ERROR);
+		axolotlStore.storeBundleError(address);
 	}
 
 	public String getOwnFingerprint() {
@@ -397,6 +431,7 @@ public class AxolotlService implements OnAdvancedStreamFeaturesLoaded {
 
 	public void clearErrorsInFetchStatusMap(Jid jid) {
 		fetchStatusMap.clearErrorFor(jid);
+		axolotlStore.clearBundleErrors(jid.asBareJid().toString());
 		fetchDeviceListStatus.remove(jid);
 	}
 
@@ -489,6 +524,14 @@ public class AxolotlService implements OnAdvancedStreamFeaturesLoaded {
 		final Set<Integer> oldSet = this.deviceIds.get(jid);
 		final boolean changed = oldSet == null || oldSet.hashCode() != hash;
 		this.deviceIds.put(jid, deviceIds);
+		if (!me) {
+			axolotlStore.storeDeviceList(jid.asBareJid().toString(), deviceIds);
+			if (changed && oldSet != null) {
+				//a republished device list may come with fixed bundles; do not wait for the stored errors to expire
+				fetchStatusMap.clearErrorFor(jid);
+				axolotlStore.clearBundleErrors(jid.asBareJid().toString());
+			}
+		}
 		if (changed) {
 			mXmppConnectionService.updateConversationUi(); //update the lock icon
 			mXmppConnectionService.keyStatusUpdated(null);
@@ -989,7 +1032,7 @@ public class AxolotlService implements OnAdvancedStreamFeaturesLoaded {
 			}
 		}
 		if (packet != null) {
-			mXmppConnectionService.sendIqPacket(account, packet, (account, response) -> {
+			fetchScheduler.fetch("devices:" + jid, packet, (account, response) -> {
 				if (response.getType() == IqPacket.TYPE.RESULT) {
 					fetchDeviceListStatus.put(jid, true);
 					Element item = mXmppConnectionService.getIqParser().getItem(response);
@@ -1058,7 +1101,7 @@ public class AxolotlService implements OnAdvancedStreamFeaturesLoaded {
 		final Jid jid = Jid.of(address.getName());
 		final boolean oneOfOurs = jid.asBareJid().equals(account.getJid().asBareJid());
 		IqPacket bundlesPacket = mXmppConnectionService.getIqGenerator().retrieveBundlesForDevice(jid, address.getDeviceId());
-		mXmppConnectionService.sendIqPacket(account, bundlesPacket, (account, packet) -> {
+		fetchScheduler.fetch("bundle:" + address, bundlesPacket, (account, packet) -> {
 			if (packet.getType() == IqPacket.TYPE.TIMEOUT) {
 				fetchStatusMap.put(address, FetchStatus.TIMEOUT);
 			} else if (packet.getType() == IqPacket.TYPE.RESULT) {
@@ -1068,7 +1111,7 @@ public class AxolotlService implements OnAdvancedStreamFeaturesLoaded {
 				final PreKeyBundle bundle = parser.bundle(packet);
 				if (preKeyBundleList.isEmpty() || bundle == null) {
 					Log.e(Config.LOGTAG, AxolotlService.getLogprefix(account) + "preKey IQ packet invalid: " + packet);
-					fetchStatusMap.put(address, FetchStatus.ERROR);
+					markBundleUnavailable(address);
 					finishBuildingSessionsFromPEP(address);
 					if (callback != null) {
 						callback.onSessionBuildFailed();
@@ -1079,7 +1122,7 @@ public class AxolotlService implements OnAdvancedStreamFeaturesLoaded {
 				final PreKeyBundle preKey = preKeyBundleList.get(random.nextInt(preKeyBundleList.size()));
 				if (preKey == null) {
 					//should never happen
-					fetchStatusMap.put(address, FetchStatus.ERROR);
+					markBundleUnavailable(address);
 					finishBuildingSessionsFromPEP(address);
 					if (callback != null) {
 						callback.onSessionBuildFailed();
@@ -1118,7 +1161,7 @@ public class AxolotlService implements OnAdvancedStreamFeaturesLoaded {
 				} catch (UntrustedIdentityException | InvalidKeyException e) {
 					Log.e(Config.LOGTAG, AxolotlService.getLogprefix(account) + "Error building session for " + address + ": "
 							+ e.getClass().getName() + ", " + e.getMessage());
-					fetchStatusMap.put(address, FetchStatus.ERROR);
+					markBundleUnavailable(address);
 					finishBuildingSessionsFromPEP(address);
 					if (oneOfOurs && cleanedOwnDeviceIds.add(address.getDeviceId())) {
 						removeFromDeviceAnnouncement(address.getDeviceId());
@@ -1128,9 +1171,13 @@ public class AxolotlService implements OnAdvancedStreamFeaturesLoaded {
 					}
 				}
 			} else {
-				fetchStatusMap.put(address, FetchStatus.ERROR);
 				Element error = packet.findChild("error");
 				boolean itemNotFound = error != null && error.hasChild("item-not-found");
+				if (itemNotFound) {
+					markBundleUnavailable(address);
+				} else {
+					fetchStatusMap.put(address, FetchStatus.ERROR);
+				}
 				Log.d(Config.LOGTAG, getLogprefix(account) + "Error received while building session:" + packet.findChild("error"));
 				finishBuildingSessionsFromPEP(address);
 				if (oneOfOurs && itemNotFound && cleanedOwnDeviceIds.add(address.getDeviceId())) {
@@ -1331,6 +1378,10 @@ public class AxolotlService implements OnAdvancedStreamFeaturesLoaded {
 		} else {
 			success = buildHeader(axolotlMessage, (Conversation) message.getConversation());
 		}
+		if (!axolotlStore.flushSessions()) {
+			Log.w(Config.LOGTAG, getLogprefix(account) + "Failed to persist sessions, not sending " + message.getUuid());
+			return null;
+		}
 		return success ? axolotlMessage : null;
 	}
 
@@ -1356,7 +1407,8 @@ public class AxolotlService implements OnAdvancedStreamFeaturesLoaded {
 			@Override
 			public void run() {
 				final XmppAxolotlMessage axolotlMessage = new XmppAxolotlMessage(account.getJid().asBareJid(), getOwnDeviceId());
-				if (buildHeader(axolotlMessage, conversation)) {
+				final boolean success = buildHeader(axolotlMessage, conversation);
+				if (success && axolotlStore.flushSessions()) {
 					onMessageCreatedCallback.run(axolotlMessage);
 				} else {
 					onMessageCreatedCallback.run(null);
@@ -1365,6 +1417,10 @@ public class AxolotlService implements OnAdvancedStreamFeaturesLoaded {
 		});
 	}
 
+	public void flushSessions() {
+		axolotlStore.flushSessions();
+	}
+
 	public XmppAxolotlMessage fetchAxolotlMessageFromCache(Message message) {
 		XmppAxolotlMessage axolotlMessage = messageCache.get(message.getUuid());
 		if (axolotlMessage != null) {
@@ -1494,6 +1550,10 @@ public class AxolotlService implements OnAdvancedStreamFeaturesLoaded {
 	private void completeSession(XmppAxolotlSession session) {
 		final XmppAxolotlMessage axolotlMessage = new XmppAxolotlMessage(account.getJid().asBareJid(), getOwnDeviceId());
 		axolotlMessage.addDevice(session, true);
+		if (!axolotlStore.flushSessions()) {
+			Log.w(Config.LOGTAG, getLogprefix(account) + "Failed to persist sessions, not completing session with " + session.getRemoteAddress());
+			return;
+		}
 		try {
 			Jid jid = Jid.of(session.getRemoteAddress().getName());
 			MessagePacket packet = mXmppConnectionService.getMessageGenerator().generateKeyTransportMessage(jid, axolotlMessage);
@@ -0,0 +1,106 @@
+package eu.siacs.conversations.crypto.axolotl;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import eu.siacs.conversations.Config;
+import eu.siacs.conversations.entities.Account;
+import eu.siacs.conversations.services.XmppConnectionService;
+import eu.siacs.conversations.xmpp.OnIqPacketReceived;
+import eu.siacs.conversations.xmpp.stanzas.IqPacket;
+
+/**
+ * Sends the PEP requests for device lists and bundles of one account, with at most {@link
+ * #MAX_IN_FLIGHT} of them waiting for a response at any time. The others are queued in order.
+ * A request for a node that is already queued or in flight is not sent again; its callback is
+ * attached to the pending request instead.
+ */
+class FetchScheduler {
+
+	private static final int MAX_IN_FLIGHT = 8;
+	private static final int PROGRESS_INTERVAL = 10;
+
+	private final Account account;
+	private final XmppConnectionService service;
+	private final LinkedHashMap<String, Request> queued = new LinkedHashMap<>();
+	private final HashMap<String, Request> inFlight = new HashMap<>();
+	private int scheduled = 0;
+	private int completed = 0;
+	private int merged = 0;
+
+	FetchScheduler(final Account account, final XmppConnectionService service) {
+		this.account = account;
+		this.service = service;
+	}
+
+	void fetch(final String node, final IqPacket packet, final OnIqPacketReceived callback) {
+		synchronized (this) {
+			Request pending = inFlight.get(node);
+			if (pending == null) {
+				pending = queued.get(node);
+			}
+			if (pending != null) {
+				pending.callbacks.add(callback);
+				++merged;
+				return;
+			}
+			final Request request = new Request(node, packet);
+			request.callbacks.add(callback);
+			queued.put(node, request);
+			++scheduled;
+		}
+		sendNext();
+	}
+
+	private void sendNext() {
+		while (true) {
+			final Request request;
+			synchronized (this) {
+				if (inFlight.size() >= MAX_IN_FLIGHT || queued.isEmpty()) {
+					return;
+				}
+				final Iterator<Request> iterator = queued.values().iterator();
+				request = iterator.next();
+				iterator.remove();
+				inFlight.put(request.node, request);
+			}
+			service.sendIqPacket(account, request.packet, (a, response) -> complete(request, response));
+		}
+	}
+
+	private void complete(final Request request, final IqPacket response) {
+		synchronized (this) {
+			inFlight.remove(request.node);
+			++completed;
+			final boolean idle = inFlight.isEmpty() && queued.isEmpty();
+			if (idle || completed % PROGRESS_INTERVAL == 0) {
+				Log.d(Config.LOGTAG, AxolotlService.getLogprefix(account) + "fetched " + completed + " of " + scheduled + " nodes (" + merged + " requests merged)");
+			}
+			if (idle) {
+				scheduled = 0;
+				completed = 0;
+				merged = 0;
+			}
+		}
+		for (OnIqPacketReceived callback : request.callbacks) {
+			callback.onIqPacketReceived(account, response);
+		}
+		sendNext();
+	}
+
+	private static class Request {
+		private final String node;
+		private final IqPacket packet;
+		private final List<OnIqPacketReceived> callbacks = new ArrayList<>();
+
+		private Request(final String node, final IqPacket packet) {
+			this.node = node;
+			this.packet = packet;
+		}
+	}
+}
@@ -1,5 +1,6 @@
 package eu.siacs.conversations.crypto.axolotl;
 
+import android.text.TextUtils;
 import android.util.Log;
 import android.util.LruCache;
 
@@ -16,8 +17,10 @@ import org.whispersystems.libsignal.state.SignedPreKeyRecord;
 import org.whispersystems.libsignal.util.KeyHelper;
 
 import java.security.cert.X509Certificate;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import eu.siacs.conversations.Config;
@@ -31,6 +34,7 @@ public class SQLiteAxolotlStore implements SignalProtocolStore {
 	public static final String SIGNED_PREKEY_TABLENAME = "signed_prekeys";
 	public static final String SESSION_TABLENAME = "sessions";
 	public static final String IDENTITIES_TABLENAME = "identities";
+	public static final String FETCH_RESULTS_TABLENAME = "fetch_results";
 	public static final String ACCOUNT = "account";
 	public static final String DEVICE_ID = "device_id";
 	public static final String ID = "id";
@@ -43,14 +47,19 @@ public class SQLiteAxolotlStore implements SignalProtocolStore {
 	public static final String LAST_ACTIVATION = "last_activation";
 	public static final String OWN = "ownkey";
 	public static final String CERTIFICATE = "certificate";
+	public static final String RESULT = "result";
+	public static final String TIMESTAMP = "timestamp";
+
+	private static final String FETCH_ERROR = "error";
 
 	public static final String JSONKEY_REGISTRATION_ID = "axolotl_reg_id";
 	public static final String JSONKEY_CURRENT_PREKEY_ID = "axolotl_cur_prekey_id";
 
-	private static final int NUM_TRUSTS_TO_CACHE = 100;
+	private static final int NUM_TRUSTS_TO_CACHE = 500;
 
 	private final Account account;
 	private final XmppConnectionService mXmppConnectionService;
+	private final SessionCache sessionCache;
 
 	private IdentityKeyPair identityKeyPair;
 	private int localRegistrationId;
@@ -81,6 +90,7 @@ public class SQLiteAxolotlStore implements SignalProtocolStore {
 	public SQLiteAxolotlStore(Account account, XmppConnectionService service) {
 		this.account = account;
 		this.mXmppConnectionService = service;
+		this.sessionCache = new SessionCache(account, service.databaseBackend);
 		this.localRegistrationId = loadRegistrationId();
 		this.currentPreKeyId = loadCurrentPreKeyId();
 	}
@@ -143,6 +153,7 @@ public class SQLiteAxolotlStore implements SignalProtocolStore {
 	}
 
 	public void regenerate() {
+		sessionCache.clear();
 		mXmppConnectionService.databaseBackend.wipeAxolotlDb(account);
 		trustCache.evictAll();
 		account.setKey(JSONKEY_CURRENT_PREKEY_ID, Integer.toString(0));
@@ -270,7 +281,7 @@ public class SQLiteAxolotlStore implements SignalProtocolStore {
 	 */
 	@Override
 	public SessionRecord loadSession(SignalProtocolAddress address) {
-		SessionRecord session = mXmppConnectionService.databaseBackend.loadSession(this.account, address);
+		SessionRecord session = sessionCache.load(address);
 		return (session != null) ? session : new SessionRecord();
 	}
 
@@ -282,23 +293,36 @@ public class SQLiteAxolotlStore implements SignalProtocolStore {
 	 */
 	@Override
 	public List<Integer> getSubDeviceSessions(String name) {
+		sessionCache.flush();
 		return mXmppConnectionService.databaseBackend.getSubDeviceSessions(account,
 				new SignalProtocolAddress(name, 0));
 	}
 
 
 	public List<String> getKnownAddresses() {
+		sessionCache.flush();
 		return mXmppConnectionService.databaseBackend.getKnownSignalAddresses(account);
 	}
 	/**
 	 * Commit to storage the {@link SessionRecord} for a given recipientId + deviceId tuple.
+	 * The record is written back lazily; see {@link #flushSessions()}.
 	 *
 	 * @param address the address of the remote client.
 	 * @param record  the current SessionRecord for the remote client.
 	 */
 	@Override
 	public void storeSession(SignalProtocolAddress address, SessionRecord record) {
-		mXmppConnectionService.databaseBackend.storeSession(account, address, record);
+		sessionCache.store(address, record);
+	}
+
+	/**
+	 * Persists all sessions that have been stored since the last flush. Must be called before
+	 * anything encrypted with those sessions leaves the device.
+	 *
+	 * @return false if the sessions could not be persisted
+	 */
+	public boolean flushSessions() {
+		return sessionCache.flush();
 	}
 
 	/**
@@ -309,7 +333,7 @@ public class SQLiteAxolotlStore implements SignalProtocolStore {
 	 */
 	@Override
 	public boolean containsSession(SignalProtocolAddress address) {
-		return mXmppConnectionService.databaseBackend.containsSession(account, address);
+		return sessionCache.contains(address);
 	}
 
 	/**
@@ -319,7 +343,7 @@ public class SQLiteAxolotlStore implements SignalProtocolStore {
 	 */
 	@Override
 	public void deleteSession(SignalProtocolAddress address) {
-		mXmppConnectionService.databaseBackend.deleteSession(account, address);
+		sessionCache.delete(address);
 	}
 
 	/**
@@ -329,9 +353,57 @@ public class SQLiteAxolotlStore implements SignalProtocolStore {
 	 */
 	@Override
 	public void deleteAllSessions(String name) {
-		SignalProtocolAddress address = new SignalProtocolAddress(name, 0);
-		mXmppConnectionService.databaseBackend.deleteAllSessions(account,
-				address);
+		sessionCache.deleteAll(name);
+	}
+
+	// --------------------------------------
+	// Cached PEP fetch results
+	// (written on the database writer executor, in the order of the calls)
+	// --------------------------------------
+
+	public void storeDeviceList(String name, Set<Integer> deviceIds) {
+		final SignalProtocolAddress address = new SignalProtocolAddress(name, 0);
+		final String serialized = TextUtils.join(",", deviceIds);
+		mXmppConnectionService.executeDatabaseWrite(() -> {
+			if (serialized.isEmpty()) {
+				mXmppConnectionService.databaseBackend.deleteFetchResult(account, address);
+			} else {
+				mXmppConnectionService.databaseBackend.storeFetchResult(account, address, serialized);
+			}
+		});
+	}
+
+	public void storeBundleError(SignalProtocolAddress address) {
+		mXmppConnectionService.executeDatabaseWrite(() -> mXmppConnectionService.databaseBackend.storeFetchResult(account, address, FETCH_ERROR));
+	}
+
+	public void clearBundleErrors(String name) {
+		mXmppConnectionService.executeDatabaseWrite(() -> mXmppConnectionService.databaseBackend.deleteFetchErrors(account, name));
+	}
+
+	/**
+	 * @return the device lists that have been fetched within the given time, keyed by bare jid
+	 */
+	public Map<String, Set<Integer>> loadDeviceLists(long maxAge, Set<SignalProtocolAddress> bundleErrors, long maxErrorAge) {
+		final long now = System.currentTimeMillis();
+		final Map<String, Set<Integer>> deviceLists = new HashMap<>();
+		for (Map.Entry<SignalProtocolAddress, String> entry : mXmppConnectionService.databaseBackend.getFetchResults(account, now - maxAge, now - maxErrorAge).entrySet()) {
+			final SignalProtocolAddress address = entry.getKey();
+			if (address.getDeviceId() != 0) {
+				bundleErrors.add(address);
+				continue;
+			}
+			final Set<Integer> deviceIds = new HashSet<>();
+			for (String deviceId : entry.getValue().split(",")) {
+				try {
+					deviceIds.add(Integer.parseInt(deviceId));
+				} catch (NumberFormatException e) {
+					//ignored
+				}
+			}
+			deviceLists.put(address.getName(), deviceIds);
+		}
+		return deviceLists;
 	}
 
 	// --------------------------------------
@@ -397,6 +469,8 @@ public class SQLiteAxolotlStore implements SignalProtocolStore {
 
 	public boolean flushPreKeys() {
 		Log.d(Config.LOGTAG,"flushing pre keys");
+		//sessions built from these pre keys have to be durable before the keys are gone
+		sessionCache.flush();
 		int count = 0;
 		synchronized (preKeysMarkedForRemoval) {
 			for(Integer preKeyId : preKeysMarkedForRemoval) {
@@ -0,0 +1,199 @@
+package eu.siacs.conversations.crypto.axolotl;
+
+import android.util.Log;
+import android.util.LruCache;
+
+import org.whispersystems.libsignal.SignalProtocolAddress;
+import org.whispersystems.libsignal.state.SessionRecord;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import eu.siacs.conversations.Config;
+import eu.siacs.conversations.entities.Account;
+import eu.siacs.conversations.persistance.DatabaseBackend;
+
+/**
+ * Write-back cache for the sessions of one account. Sessions are kept serialized so every load
+ * hands out a fresh copy, as the SessionStore contract requires. Stored sessions are marked dirty
+ * and written together, in one transaction, shortly afterwards. Before ciphertext leaves the
+ * device, and before the pre key a session was built from is deleted, callers must invoke
+ * {@link #flush()}. This way a crash can never roll back a ratchet whose successor has already
+ * been used.
+ */
+class SessionCache {
+
+	private static final int MAX_CLEAN_SESSIONS = 256;
+	private static final long FLUSH_DELAY = 1000;
+
+	private static final byte[] NO_SESSION = new byte[0];
+
+	private static ScheduledExecutorService executor = null;
+
+	private final Account account;
+	private final DatabaseBackend databaseBackend;
+	private final HashMap<SignalProtocolAddress, byte[]> dirty = new HashMap<>();
+	private final LruCache<SignalProtocolAddress, byte[]> clean = new LruCache<>(MAX_CLEAN_SESSIONS);
+	private boolean flushScheduled = false;
+	private long generation = 0;
+
+	private final AtomicLong hits = new AtomicLong(0);
+	private final AtomicLong misses = new AtomicLong(0);
+	private final AtomicLong stored = new AtomicLong(0);
+	private final AtomicLong written = new AtomicLong(0);
+
+	SessionCache(final Account account, final DatabaseBackend databaseBackend) {
+		this.account = account;
+		this.databaseBackend = databaseBackend;
+	}
+
+	private static synchronized ScheduledExecutorService getExecutor() {
+		if (executor == null) {
+			executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+				final Thread thread = new Thread(runnable, "SessionCache");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		return executor;
+	}
+
+	/**
+	 * Misses are read from the database without holding the lock. Every modification bumps a
+	 * generation counter; a record read while the cache changed is only used if the cache does not
+	 * know a newer one, and only cached if nothing changed in the meantime. Otherwise the read is
+	 * repeated.
+	 */
+	SessionRecord load(final SignalProtocolAddress address) {
+		byte[] serialized;
+		while (true) {
+			final long before;
+			synchronized (this) {
+				serialized = get(address);
+				before = generation;
+			}
+			if (serialized != null) {
+				hits.incrementAndGet();
+				break;
+			}
+			misses.incrementAndGet();
+			final SessionRecord record = databaseBackend.loadSession(account, address);
+			synchronized (this) {
+				serialized = get(address);
+				if (serialized == null && generation == before) {
+					clean.put(address, record == null ? NO_SESSION : record.serialize());
+					return record;
+				}
+			}
+			if (serialized != null) {
+				break;
+			}
+		}
+		if (serialized == NO_SESSION) {
+			return null;
+		}
+		try {
+			return new SessionRecord(serialized);
+		} catch (IOException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	private byte[] get(final SignalProtocolAddress address) {
+		final byte[] serialized = dirty.get(address);
+		return serialized != null ? serialized : clean.get(address);
+	}
+
+	boolean contains(final SignalProtocolAddress address) {
+		return load(address) != null;
+	}
+
+	void store(final SignalProtocolAddress address, final SessionRecord record) {
+		final byte[] serialized = record.serialize();
+		stored.incrementAndGet();
+		synchronized (this) {
+			++generation;
+			dirty.put(address, serialized);
+			clean.remove(address);
+			if (!flushScheduled) {
+				flushScheduled = true;
+				getExecutor().schedule(this::scheduledFlush, FLUSH_DELAY, TimeUnit.MILLISECONDS);
+			}
+		}
+	}
+
+	synchronized void delete(final SignalProtocolAddress address) {
+		++generation;
+		dirty.remove(address);
+		clean.put(address, NO_SESSION);
+		databaseBackend.deleteSession(account, address);
+	}
+
+	synchronized void deleteAll(final String name) {
+		++generation;
+		for (Iterator<SignalProtocolAddress> iterator = dirty.keySet().iterator(); iterator.hasNext(); ) {
+			if (iterator.next().getName().equals(name)) {
+				iterator.remove();
+			}
+		}
+		for (SignalProtocolAddress address : clean.snapshot().keySet()) {
+			if (address.getName().equals(name)) {
+				clean.remove(address);
+			}
+		}
+		databaseBackend.deleteAllSessions(account, new SignalProtocolAddress(name, 0));
+	}
+
+	/**
+	 * Writes all dirty sessions in one transaction. Returns once they are durable. On failure the
+	 * sessions stay dirty and another flush is scheduled.
+	 *
+	 * @return false if the sessions could not be written; nothing encrypted with them may be sent
+	 */
+	synchronized boolean flush() {
+		if (dirty.isEmpty()) {
+			return true;
+		}
+		try {
+			databaseBackend.storeSessions(account, dirty);
+		} catch (RuntimeException e) {
+			Log.e(Config.LOGTAG, AxolotlService.getLogprefix(account) + "unable to persist " + dirty.size() + " sessions", e);
+			if (!flushScheduled) {
+				flushScheduled = true;
+				getExecutor().schedule(this::scheduledFlush, FLUSH_DELAY, TimeUnit.MILLISECONDS);
+			}
+			return false;
+		}
+		written.addAndGet(dirty.size());
+		for (Map.Entry<SignalProtocolAddress, byte[]> entry : dirty.entrySet()) {
+			clean.put(entry.getKey(), entry.getValue());
+		}
+		dirty.clear();
+		return true;
+	}
+
+	private synchronized void scheduledFlush() {
+		flushScheduled = false;
+		flush();
+	}
+
+	synchronized void clear() {
+		++generation;
+		dirty.clear();
+		clean.evictAll();
+	}
+
+	@Override
+	public String toString() {
+		return "hits=" + hits.get()
+				+ ", misses=" + misses.get()
+				+ ", stored=" + stored.get()
+				+ ", written=" + written.get();
+	}
+}
@@ -100,31 +100,68 @@ public class Contact implements ListItem, Blockable {
 	}
 
 	public static Contact fromCursor(final Cursor cursor) {
+		return fromCursor(cursor, new Columns(cursor));
+	}
+
+	public static Contact fromCursor(final Cursor cursor, final Columns columns) {
 		final Jid jid;
 		try {
-			jid = Jid.of(cursor.getString(cursor.getColumnIndex(JID)));
+			jid = JidHelper.intern(cursor.getString(columns.jid));
 		} catch (final IllegalArgumentException e) {
 			// TODO: Borked DB... handle this somehow?
 			return null;
 		}
 		Uri systemAccount;
 		try {
-			systemAccount = Uri.parse(cursor.getString(cursor.getColumnIndex(SYSTEMACCOUNT)));
+			systemAccount = Uri.parse(cursor.getString(columns.systemAccount));
 		} catch (Exception e) {
 			systemAccount = null;
 		}
-		return new Contact(cursor.getString(cursor.getColumnIndex(ACCOUNT)),
-				cursor.getString(cursor.getColumnIndex(SYSTEMNAME)),
-				cursor.getString(cursor.getColumnIndex(SERVERNAME)),
+		return new Contact(cursor.getString(columns.account),
+				cursor.getString(columns.systemName),
+				cursor.getString(columns.serverName),
 				jid,
-				cursor.getInt(cursor.getColumnIndex(OPTIONS)),
-				cursor.getString(cursor.getColumnIndex(PHOTOURI)),
+				cursor.getInt(columns.options),
+				cursor.getString(columns.photoUri),
 				systemAccount,
-				cursor.getString(cursor.getColumnIndex(KEYS)),
-				cursor.getString(cursor.getColumnIndex(AVATAR)),
-				cursor.getLong(cursor.getColumnIndex(LAST_TIME)),
-				cursor.getString(cursor.getColumnIndex(LAST_PRESENCE)),
-				cursor.getString(cursor.getColumnIndex(GROUPS)));
+				cursor.getString(columns.keys),
+				cursor.getString(columns.avatar),
+				cursor.getLong(columns.lastTime),
+				cursor.getString(columns.lastPresence),
+				cursor.getString(columns.groups));
+	}
+
+	/**
+	 * Column positions of a contact cursor, resolved once per cursor.
+	 */
+	public static class Columns {
+		final int jid;
+		final int systemAccount;
+		final int account;
+		final int systemName;
+		final int serverName;
+		final int options;
+		final int photoUri;
+		final int keys;
+		final int avatar;
+		final int lastTime;
+		final int lastPresence;
+		final int groups;
+
+		public Columns(final Cursor cursor) {
+			jid = cursor.getColumnIndex(JID);
+			systemAccount = cursor.getColumnIndex(SYSTEMACCOUNT);
+			account = cursor.getColumnIndex(ACCOUNT);
+			systemName = cursor.getColumnIndex(SYSTEMNAME);
+			serverName = cursor.getColumnIndex(SERVERNAME);
+			options = cursor.getColumnIndex(OPTIONS);
+			photoUri = cursor.getColumnIndex(PHOTOURI);
+			keys = cursor.getColumnIndex(KEYS);
+			avatar = cursor.getColumnIndex(AVATAR);
+			lastTime = cursor.getColumnIndex(LAST_TIME);
+			lastPresence = cursor.getColumnIndex(LAST_PRESENCE);
+			groups = cursor.getColumnIndex(GROUPS);
+		}
 	}
 
 	public String getDisplayName() {
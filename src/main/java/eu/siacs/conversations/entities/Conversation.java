@@ -3,6 +3,7 @@ package eu.siacs.conversations.entities;
 import android.content.ContentValues;
 import android.database.Cursor;
 import android.graphics.Color;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.text.TextUtils;
@@ -16,7 +17,6 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Locale;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -66,6 +66,7 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
 	static final String ATTRIBUTE_NON_ANONYMOUS = "non_anonymous";
 	public static final String ATTRIBUTE_FORMERLY_PRIVATE_NON_ANONYMOUS = "formerly_private_non_anonymous";
 	protected final ArrayList<Message> messages = new ArrayList<>();
+	private final MessageIndex messageIndex = new MessageIndex();
 	public AtomicBoolean messagesLoaded = new AtomicBoolean(true);
 	protected Account account = null;
 	private String draftMessage;
@@ -83,6 +84,10 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
 	private ChatState mOutgoingChatState = Config.DEFAULT_CHATSTATE;
 	private ChatState mIncomingChatState = Config.DEFAULT_CHATSTATE;
 	private String mFirstMamReference = null;
+	private volatile long lastAccessed = 0;
+	private long evictedUpTo = 0;
+	private Message summaryMessage = null;
+	private int summaryUnreadCount = 0;
 
 	public Conversation(final String name, final Account account, final Jid contactJid,
 	                    final int mode) {
@@ -111,15 +116,46 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
 	}
 
 	public static Conversation fromCursor(Cursor cursor) {
-		return new Conversation(cursor.getString(cursor.getColumnIndex(UUID)),
-				cursor.getString(cursor.getColumnIndex(NAME)),
-				cursor.getString(cursor.getColumnIndex(CONTACT)),
-				cursor.getString(cursor.getColumnIndex(ACCOUNT)),
-				JidHelper.parseOrFallbackToInvalid(cursor.getString(cursor.getColumnIndex(CONTACTJID))),
-				cursor.getLong(cursor.getColumnIndex(CREATED)),
-				cursor.getInt(cursor.getColumnIndex(STATUS)),
-				cursor.getInt(cursor.getColumnIndex(MODE)),
-				cursor.getString(cursor.getColumnIndex(ATTRIBUTES)));
+		return fromCursor(cursor, new Columns(cursor));
+	}
+
+	public static Conversation fromCursor(Cursor cursor, Columns columns) {
+		return new Conversation(cursor.getString(columns.uuid),
+				cursor.getString(columns.name),
+				cursor.getString(columns.contact),
+				cursor.getString(columns.account),
+				JidHelper.parseOrFallbackToInvalid(cursor.getString(columns.contactJid)),
+				cursor.getLong(columns.created),
+				cursor.getInt(columns.status),
+				cursor.getInt(columns.mode),
+				cursor.getString(columns.attributes));
+	}
+
+	/**
+	 * Column positions of a conversation cursor, resolved once per cursor.
+	 */
+	public static class Columns {
+		final int uuid;
+		final int name;
+		final int contact;
+		final int account;
+		final int contactJid;
+		final int created;
+		final int status;
+		final int mode;
+		final int attributes;
+
+		public Columns(Cursor cursor) {
+			uuid = cursor.getColumnIndex(UUID);
+			name = cursor.getColumnIndex(NAME);
+			contact = cursor.getColumnIndex(CONTACT);
+			account = cursor.getColumnIndex(ACCOUNT);
+			contactJid = cursor.getColumnIndex(CONTACTJID);
+			created = cursor.getColumnIndex(CREATED);
+			status = cursor.getColumnIndex(STATUS);
+			mode = cursor.getColumnIndex(MODE);
+			attributes = cursor.getColumnIndex(ATTRIBUTES);
+		}
 	}
 
 	public boolean hasMessagesLeftOnServer() {
@@ -146,7 +182,7 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
 
 	public Message findUnsentMessageWithUuid(String uuid) {
 		synchronized (this.messages) {
-			for (final Message message : this.messages) {
+			for (final Message message : messageIndex.withUuid(uuid)) {
 				final int s = message.getStatus();
 				if ((s == Message.STATUS_UNSEND || s == Message.STATUS_WAITING) && message.getUuid().equals(uuid)) {
 					return message;
@@ -186,7 +222,7 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
 
 	public Message findMessageWithFileAndUuid(final String uuid) {
 		synchronized (this.messages) {
-			for (final Message message : this.messages) {
+			for (final Message message : messageIndex.withUuid(uuid)) {
 				if (message.getUuid().equals(uuid)
 						&& message.getEncryption() != Message.ENCRYPTION_PGP
 						&& (message.isFileOrImage() || message.treatAsDownloadable())) {
@@ -234,7 +270,17 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
 
 	public void clearMessages() {
 		synchronized (this.messages) {
+			this.summaryMessage = null;
 			this.messages.clear();
+			this.messageIndex.clear();
+		}
+	}
+
+	void reindex(final Message message) {
+		synchronized (this.messages) {
+			if (message.indexed) {
+				messageIndex.add(message);
+			}
 		}
 	}
 
@@ -265,19 +311,87 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
 	}
 
 	public void trim() {
+		evictMessages(Config.PAGE_SIZE * Config.MAX_NUM_PAGES);
+	}
+
+	/**
+	 * Drops all but the newest messages from memory. Unread messages are always kept, and so is
+	 * everything from the oldest message that is still being sent or transferred onwards, since
+	 * resending and acknowledging those only looks at memory. Evicted messages stay in the database
+	 * and are paged back in when the user scrolls up.
+	 *
+	 * @return the number of evicted messages
+	 */
+	public int evictMessages(final int keep) {
 		synchronized (this.messages) {
-			final int size = messages.size();
-			final int maxsize = Config.PAGE_SIZE * Config.MAX_NUM_PAGES;
-			if (size > maxsize) {
-				List<Message> discards = this.messages.subList(0, size - maxsize);
-				final PgpDecryptionService pgpDecryptionService = account.getPgpDecryptionService();
-				if (pgpDecryptionService != null) {
-					pgpDecryptionService.discard(discards);
+			int discard = messages.size() - Math.max(keep, unreadCount());
+			for (int i = 0; i < discard; ++i) {
+				if (isInProgress(messages.get(i))) {
+					discard = i;
+					break;
 				}
-				discards.clear();
-				untieMessages();
+			}
+			if (discard <= 0) {
+				return 0;
+			}
+			final List<Message> discards = this.messages.subList(0, discard);
+			for (Message message : discards) {
+				evictedUpTo = Math.max(evictedUpTo, message.getTimeSent());
+			}
+			final PgpDecryptionService pgpDecryptionService = account.getPgpDecryptionService();
+			if (pgpDecryptionService != null) {
+				pgpDecryptionService.discard(discards);
+			}
+			discards.clear();
+			messageIndex.rebuild(this.messages);
+			untieMessages();
+			return discard;
+		}
+	}
+
+	private static boolean isInProgress(final Message message) {
+		final int status = message.getStatus();
+		return status == Message.STATUS_WAITING
+				|| status == Message.STATUS_UNSEND
+				|| status == Message.STATUS_OFFERED
+				|| message.getTransferable() != null;
+	}
+
+	/**
+	 * @return true if messages sent at that time might have been evicted from memory, meaning a
+	 * lookup that misses in memory has to be repeated against the database
+	 */
+	public boolean mightHaveEvicted(final long timestamp) {
+		synchronized (this.messages) {
+			return timestamp <= evictedUpTo;
+		}
+	}
+
+	/**
+	 * @return the newest time at which an evicted message was sent, or 0 if nothing was evicted
+	 */
+	public long getEvictedUpTo() {
+		synchronized (this.messages) {
+			return evictedUpTo;
+		}
+	}
+
+	public void touch() {
+		this.lastAccessed = SystemClock.elapsedRealtime();
+	}
+
+	public long getLastAccessed() {
+		return this.lastAccessed;
+	}
+
+	public long getEstimatedHeapSize() {
+		long size = 0;
+		synchronized (this.messages) {
+			for (Message message : this.messages) {
+				size += message.getEstimatedHeapSize();
 			}
 		}
+		return size;
 	}
 
 	public void findUnsentTextMessages(OnMessageFound onMessageFound) {
@@ -296,10 +410,13 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
 
 	public Message findSentMessageWithUuidOrRemoteId(String id) {
 		synchronized (this.messages) {
-			for (Message message : this.messages) {
-				if (id.equals(message.getUuid())
-						|| (message.getStatus() >= Message.STATUS_SEND
-						&& id.equals(message.getRemoteMsgId()))) {
+			for (Message message : messageIndex.withUuid(id)) {
+				if (id.equals(message.getUuid())) {
+					return message;
+				}
+			}
+			for (Message message : messageIndex.withRemoteMsgId(id)) {
+				if (message.getStatus() >= Message.STATUS_SEND && id.equals(message.getRemoteMsgId())) {
 					return message;
 				}
 			}
@@ -308,26 +425,79 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
 	}
 
 	public Message findMessageWithRemoteIdAndCounterpart(String id, Jid counterpart, boolean received, boolean carbon) {
+		synchronized (this.messages) {
+			if (!hasIndexedRemoteMsgId(id, counterpart)) {
+				return null;
+			}
+			final Message last = findLastMessageWithCounterpart(counterpart, received, carbon);
+			return isCorrectable(last, id) ? last : null;
+		}
+	}
+
+	/**
+	 * @return the newest message in memory that was exchanged with the counterpart in the given
+	 * direction
+	 */
+	public Message findLastMessageWithCounterpart(Jid counterpart, boolean received, boolean carbon) {
 		synchronized (this.messages) {
 			for (int i = this.messages.size() - 1; i >= 0; --i) {
 				Message message = messages.get(i);
 				if (counterpart.equals(message.getCounterpart())
 						&& ((message.getStatus() == Message.STATUS_RECEIVED) == received)
 						&& (carbon == message.isCarbon() || received)) {
-					if (id.equals(message.getRemoteMsgId()) && !message.isFileOrImage() && !message.treatAsDownloadable()) {
-						return message;
-					} else {
-						return null;
-					}
+					return message;
 				}
 			}
 		}
 		return null;
 	}
 
+	/**
+	 * @return true if the message is the one a correction with the given id refers to
+	 */
+	public static boolean isCorrectable(final Message message, final String id) {
+		return message != null && id.equals(message.getRemoteMsgId()) && !message.isFileOrImage() && !message.treatAsDownloadable();
+	}
+
+	public static Message findSentMessageWithUuidOrRemoteId(final List<Message> candidates, final String id) {
+		final Message message = findSentMessageWithUuid(candidates, id);
+		if (message != null) {
+			return message;
+		}
+		for (Message candidate : candidates) {
+			if (candidate.getStatus() >= Message.STATUS_SEND && id.equals(candidate.getRemoteMsgId())) {
+				return candidate;
+			}
+		}
+		return null;
+	}
+
+	public static Message findSentMessageWithUuid(final List<Message> candidates, final String id) {
+		for (Message candidate : candidates) {
+			if (id.equals(candidate.getUuid())) {
+				return candidate;
+			}
+		}
+		return null;
+	}
+
+	public static Message findMessageWithRemoteId(final List<Message> candidates, final String id, final Jid counterpart) {
+		for (Message candidate : candidates) {
+			if (counterpart.equals(candidate.getCounterpart()) && id.equals(candidate.getRemoteMsgId())) {
+				return candidate;
+			}
+		}
+		for (Message candidate : candidates) {
+			if (counterpart.equals(candidate.getCounterpart()) && id.equals(candidate.getUuid())) {
+				return candidate;
+			}
+		}
+		return null;
+	}
+
 	public Message findSentMessageWithUuid(String id) {
 		synchronized (this.messages) {
-			for (Message message : this.messages) {
+			for (Message message : messageIndex.withUuid(id)) {
 				if (id.equals(message.getUuid())) {
 					return message;
 				}
@@ -338,9 +508,13 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
 
 	public Message findMessageWithRemoteId(String id, Jid counterpart) {
 		synchronized (this.messages) {
-			for (Message message : this.messages) {
-				if (counterpart.equals(message.getCounterpart())
-						&& (id.equals(message.getRemoteMsgId()) || id.equals(message.getUuid()))) {
+			for (Message message : messageIndex.withRemoteMsgId(id)) {
+				if (counterpart.equals(message.getCounterpart()) && id.equals(message.getRemoteMsgId())) {
+					return message;
+				}
+			}
+			for (Message message : messageIndex.withUuid(id)) {
+				if (counterpart.equals(message.getCounterpart()) && id.equals(message.getUuid())) {
 					return message;
 				}
 			}
@@ -348,6 +522,15 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
 		return null;
 	}
 
+	private boolean hasIndexedRemoteMsgId(final String id, final Jid counterpart) {
+		for (Message message : messageIndex.withRemoteMsgId(id)) {
+			if (counterpart.equals(message.getCounterpart()) && id.equals(message.getRemoteMsgId())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
 	public boolean hasMessageWithCounterpart(Jid counterpart) {
 		synchronized (this.messages) {
 			for (Message message : this.messages) {
@@ -493,9 +676,23 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
 		return null;
 	}
 
+	/**
+	 * Stands in for the latest message and the unread count until the messages are restored.
+	 */
+	public void setSummary(final Message latestMessage, final int unreadCount) {
+		synchronized (this.messages) {
+			if (this.messages.isEmpty()) {
+				this.summaryMessage = latestMessage;
+				this.summaryUnreadCount = unreadCount;
+			}
+		}
+	}
+
 	public Message getLatestMessage() {
 		synchronized (this.messages) {
-			if (this.messages.size() == 0) {
+			if (this.messages.size() == 0 && summaryMessage != null) {
+				return summaryMessage;
+			} else if (this.messages.size() == 0) {
 				Message message = new Message(this, "", Message.ENCRYPTION_NONE);
 				message.setType(Message.TYPE_STATUS);
 				message.setTime(Math.max(getCreated(), getLastClearHistory().getTimestamp()));
@@ -695,10 +892,30 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
 
 	public Message findDuplicateMessage(Message message) {
 		synchronized (this.messages) {
-			for (int i = this.messages.size() - 1; i >= 0; --i) {
-				if (this.messages.get(i).similar(message)) {
-					return this.messages.get(i);
+			if (message.getRemoteMsgId() == null) {
+				//may match on body and time alone which is not indexed
+				for (int i = this.messages.size() - 1; i >= 0; --i) {
+					if (this.messages.get(i).similar(message)) {
+						return this.messages.get(i);
+					}
 				}
+				return null;
+			}
+			Message duplicate = findDuplicateMessage(messageIndex.withServerMsgId(message.getServerMsgId()), message);
+			if (duplicate == null) {
+				duplicate = findDuplicateMessage(messageIndex.withRemoteMsgId(message.getRemoteMsgId()), message);
+			}
+			if (duplicate == null) {
+				duplicate = findDuplicateMessage(messageIndex.withUuid(message.getRemoteMsgId()), message);
+			}
+			return duplicate;
+		}
+	}
+
+	public static Message findDuplicateMessage(final List<Message> candidates, final Message message) {
+		for (Message candidate : candidates) {
+			if (candidate.similar(message)) {
+				return candidate;
 			}
 		}
 		return null;
@@ -733,8 +950,13 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
 			return false;
 		}
 		synchronized (this.messages) {
-			for(Message message : this.messages) {
-				if (serverMsgId.equals(message.getServerMsgId()) || remoteMsgId.equals(message.getRemoteMsgId())) {
+			for (Message message : messageIndex.withServerMsgId(serverMsgId)) {
+				if (serverMsgId.equals(message.getServerMsgId())) {
+					return true;
+				}
+			}
+			for (Message message : messageIndex.withRemoteMsgId(remoteMsgId)) {
+				if (remoteMsgId.equals(message.getRemoteMsgId())) {
 					return true;
 				}
 			}
@@ -882,31 +1104,56 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
 
 	public void add(Message message) {
 		synchronized (this.messages) {
+			this.summaryMessage = null;
 			this.messages.add(message);
+			this.messageIndex.add(message);
 		}
 	}
 
 	public void prepend(int offset, Message message) {
 		synchronized (this.messages) {
+			this.summaryMessage = null;
 			this.messages.add(Math.min(offset, this.messages.size()), message);
+			this.messageIndex.add(message);
 		}
 	}
 
 	public void addAll(int index, List<Message> messages) {
 		synchronized (this.messages) {
+			this.summaryMessage = null;
 			this.messages.addAll(index, messages);
+			for (Message message : messages) {
+				this.messageIndex.add(message);
+			}
 		}
 		account.getPgpDecryptionService().decrypt(messages);
 	}
 
-	public void expireOldMessages(long timestamp) {
+	/**
+	 * Drops all messages older than the timestamp from memory by compacting the list in a single
+	 * pass. Returns the number of messages that have been removed.
+	 */
+	public int expireOldMessages(long timestamp) {
 		synchronized (this.messages) {
-			for (ListIterator<Message> iterator = this.messages.listIterator(); iterator.hasNext(); ) {
-				if (iterator.next().getTimeSent() < timestamp) {
-					iterator.remove();
+			if (summaryMessage != null && summaryMessage.getTimeSent() < timestamp) {
+				summaryMessage = null;
+				summaryUnreadCount = 0;
+			}
+			int kept = 0;
+			final int size = this.messages.size();
+			for (int i = 0; i < size; ++i) {
+				final Message message = this.messages.get(i);
+				if (message.getTimeSent() >= timestamp) {
+					this.messages.set(kept++, message);
 				}
 			}
+			if (kept == size) {
+				return 0;
+			}
+			this.messages.subList(kept, size).clear();
+			messageIndex.rebuild(this.messages);
 			untieMessages();
+			return size - kept;
 		}
 	}
 
@@ -918,7 +1165,8 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
 				} else if (left.getTimeSent() > right.getTimeSent()) {
 					return 1;
 				} else {
-					return 0;
+					//same order as the (timeSent, uuid) key used for paging through the database
+					return left.getUuid().compareTo(right.getUuid());
 				}
 			});
 			untieMessages();
@@ -933,6 +1181,9 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
 
 	public int unreadCount() {
 		synchronized (this.messages) {
+			if (this.messages.isEmpty() && summaryMessage != null) {
+				return summaryUnreadCount;
+			}
 			int count = 0;
 			for (int i = this.messages.size() - 1; i >= 0; --i) {
 				if (this.messages.get(i).isRead()) {
@@ -77,4 +77,8 @@ public class Edited {
     public String getEditedId() {
         return editedId;
     }
+
+    public String getServerMsgId() {
+        return serverMsgId;
+    }
 }
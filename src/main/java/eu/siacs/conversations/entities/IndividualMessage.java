@@ -34,6 +34,7 @@ import android.database.Cursor;
 import java.util.Set;
 
 import eu.siacs.conversations.ui.adapter.MessageAdapter;
+import eu.siacs.conversations.utils.JidHelper;
 import rocks.xmpp.addr.Jid;
 
 public class IndividualMessage extends Message {
@@ -71,11 +72,15 @@ public class IndividualMessage extends Message {
 	}
 
 	public static Message fromCursor(Cursor cursor, Conversational conversation) {
+		return fromCursor(cursor, new Columns(cursor), conversation);
+	}
+
+	public static Message fromCursor(Cursor cursor, Columns columns, Conversational conversation) {
 		Jid jid;
 		try {
-			String value = cursor.getString(cursor.getColumnIndex(COUNTERPART));
+			String value = cursor.getString(columns.counterpart);
 			if (value != null) {
-				jid = Jid.of(value);
+				jid = JidHelper.intern(value);
 			} else {
 				jid = null;
 			}
@@ -86,9 +91,9 @@ public class IndividualMessage extends Message {
 		}
 		Jid trueCounterpart;
 		try {
-			String value = cursor.getString(cursor.getColumnIndex(TRUE_COUNTERPART));
+			String value = cursor.getString(columns.trueCounterpart);
 			if (value != null) {
-				trueCounterpart = Jid.of(value);
+				trueCounterpart = JidHelper.intern(value);
 			} else {
 				trueCounterpart = null;
 			}
@@ -96,26 +101,26 @@ public class IndividualMessage extends Message {
 			trueCounterpart = null;
 		}
 		return new IndividualMessage(conversation,
-				cursor.getString(cursor.getColumnIndex(UUID)),
-				cursor.getString(cursor.getColumnIndex(CONVERSATION)),
+				cursor.getString(columns.uuid),
+				cursor.getString(columns.conversation),
 				jid,
 				trueCounterpart,
-				cursor.getString(cursor.getColumnIndex(BODY)),
-				cursor.getLong(cursor.getColumnIndex(TIME_SENT)),
-				cursor.getInt(cursor.getColumnIndex(ENCRYPTION)),
-				cursor.getInt(cursor.getColumnIndex(STATUS)),
-				cursor.getInt(cursor.getColumnIndex(TYPE)),
-				cursor.getInt(cursor.getColumnIndex(CARBON)) > 0,
-				cursor.getString(cursor.getColumnIndex(REMOTE_MSG_ID)),
-				cursor.getString(cursor.getColumnIndex(RELATIVE_FILE_PATH)),
-				cursor.getString(cursor.getColumnIndex(SERVER_MSG_ID)),
-				cursor.getString(cursor.getColumnIndex(FINGERPRINT)),
-				cursor.getInt(cursor.getColumnIndex(READ)) > 0,
-				cursor.getString(cursor.getColumnIndex(EDITED)),
-				cursor.getInt(cursor.getColumnIndex(OOB)) > 0,
-				cursor.getString(cursor.getColumnIndex(ERROR_MESSAGE)),
-				ReadByMarker.fromJsonString(cursor.getString(cursor.getColumnIndex(READ_BY_MARKERS))),
-				cursor.getInt(cursor.getColumnIndex(MARKABLE)) > 0,
-				cursor.getInt(cursor.getColumnIndex(DELETED)) > 0);
+				cursor.getString(columns.body),
+				cursor.getLong(columns.timeSent),
+				cursor.getInt(columns.encryption),
+				cursor.getInt(columns.status),
+				cursor.getInt(columns.type),
+				cursor.getInt(columns.carbon) > 0,
+				cursor.getString(columns.remoteMsgId),
+				cursor.getString(columns.relativeFilePath),
+				cursor.getString(columns.serverMsgId),
+				cursor.getString(columns.fingerprint),
+				cursor.getInt(columns.read) > 0,
+				cursor.getString(columns.edited),
+				cursor.getInt(columns.oob) > 0,
+				cursor.getString(columns.errorMessage),
+				ReadByMarker.fromJsonString(cursor.getString(columns.readByMarkers)),
+				cursor.getInt(columns.markable) > 0,
+				cursor.getInt(columns.deleted) > 0);
 	}
 }
@@ -24,6 +24,7 @@ import eu.siacs.conversations.services.AvatarService;
 import eu.siacs.conversations.utils.CryptoHelper;
 import eu.siacs.conversations.utils.Emoticons;
 import eu.siacs.conversations.utils.GeoHelper;
+import eu.siacs.conversations.utils.JidHelper;
 import eu.siacs.conversations.utils.MessageUtils;
 import eu.siacs.conversations.utils.MimeUtils;
 import eu.siacs.conversations.utils.UIHelper;
@@ -115,6 +116,7 @@ public class Message extends AbstractEntity implements AvatarService.Avatarable
 	private FileParams fileParams = null;
 	private List<MucOptions.User> counterparts;
 	private WeakReference<MucOptions.User> user;
+	boolean indexed = false;
 
 	protected Message(Conversational conversation) {
 		this.conversation = conversation;
@@ -179,35 +181,95 @@ public class Message extends AbstractEntity implements AvatarService.Avatarable
 		this.deleted = deleted;
 	}
 
+	/**
+	 * Column positions of a message cursor. Resolve them once per cursor and reuse them for every
+	 * row instead of looking up each column by name again.
+	 */
+	public static class Columns {
+		final int uuid;
+		final int conversation;
+		final int counterpart;
+		final int trueCounterpart;
+		final int body;
+		final int timeSent;
+		final int encryption;
+		final int status;
+		final int type;
+		final int carbon;
+		final int remoteMsgId;
+		final int relativeFilePath;
+		final int serverMsgId;
+		final int fingerprint;
+		final int read;
+		final int edited;
+		final int oob;
+		final int errorMessage;
+		final int readByMarkers;
+		final int markable;
+		final int deleted;
+
+		public Columns(Cursor cursor) {
+			uuid = cursor.getColumnIndex(UUID);
+			conversation = cursor.getColumnIndex(CONVERSATION);
+			counterpart = cursor.getColumnIndex(COUNTERPART);
+			trueCounterpart = cursor.getColumnIndex(TRUE_COUNTERPART);
+			body = cursor.getColumnIndex(BODY);
+			timeSent = cursor.getColumnIndex(TIME_SENT);
+			encryption = cursor.getColumnIndex(ENCRYPTION);
+			status = cursor.getColumnIndex(STATUS);
+			type = cursor.getColumnIndex(TYPE);
+			carbon = cursor.getColumnIndex(CARBON);
+			remoteMsgId = cursor.getColumnIndex(REMOTE_MSG_ID);
+			relativeFilePath = cursor.getColumnIndex(RELATIVE_FILE_PATH);
+			serverMsgId = cursor.getColumnIndex(SERVER_MSG_ID);
+			fingerprint = cursor.getColumnIndex(FINGERPRINT);
+			read = cursor.getColumnIndex(READ);
+			edited = cursor.getColumnIndex(EDITED);
+			oob = cursor.getColumnIndex(OOB);
+			errorMessage = cursor.getColumnIndex(ERROR_MESSAGE);
+			readByMarkers = cursor.getColumnIndex(READ_BY_MARKERS);
+			markable = cursor.getColumnIndex(MARKABLE);
+			deleted = cursor.getColumnIndex(DELETED);
+		}
+
+		public int getConversation() {
+			return conversation;
+		}
+	}
+
 	public static Message fromCursor(Cursor cursor, Conversation conversation) {
+		return fromCursor(cursor, new Columns(cursor), conversation);
+	}
+
+	public static Message fromCursor(Cursor cursor, Columns columns, Conversation conversation) {
 		return new Message(conversation,
-				cursor.getString(cursor.getColumnIndex(UUID)),
-				cursor.getString(cursor.getColumnIndex(CONVERSATION)),
-				fromString(cursor.getString(cursor.getColumnIndex(COUNTERPART))),
-				fromString(cursor.getString(cursor.getColumnIndex(TRUE_COUNTERPART))),
-				cursor.getString(cursor.getColumnIndex(BODY)),
-				cursor.getLong(cursor.getColumnIndex(TIME_SENT)),
-				cursor.getInt(cursor.getColumnIndex(ENCRYPTION)),
-				cursor.getInt(cursor.getColumnIndex(STATUS)),
-				cursor.getInt(cursor.getColumnIndex(TYPE)),
-				cursor.getInt(cursor.getColumnIndex(CARBON)) > 0,
-				cursor.getString(cursor.getColumnIndex(REMOTE_MSG_ID)),
-				cursor.getString(cursor.getColumnIndex(RELATIVE_FILE_PATH)),
-				cursor.getString(cursor.getColumnIndex(SERVER_MSG_ID)),
-				cursor.getString(cursor.getColumnIndex(FINGERPRINT)),
-				cursor.getInt(cursor.getColumnIndex(READ)) > 0,
-				cursor.getString(cursor.getColumnIndex(EDITED)),
-				cursor.getInt(cursor.getColumnIndex(OOB)) > 0,
-				cursor.getString(cursor.getColumnIndex(ERROR_MESSAGE)),
-				ReadByMarker.fromJsonString(cursor.getString(cursor.getColumnIndex(READ_BY_MARKERS))),
-				cursor.getInt(cursor.getColumnIndex(MARKABLE)) > 0,
-				cursor.getInt(cursor.getColumnIndex(DELETED)) > 0);
+				cursor.getString(columns.uuid),
+				cursor.getString(columns.conversation),
+				fromString(cursor.getString(columns.counterpart)),
+				fromString(cursor.getString(columns.trueCounterpart)),
+				cursor.getString(columns.body),
+				cursor.getLong(columns.timeSent),
+				cursor.getInt(columns.encryption),
+				cursor.getInt(columns.status),
+				cursor.getInt(columns.type),
+				cursor.getInt(columns.carbon) > 0,
+				cursor.getString(columns.remoteMsgId),
+				cursor.getString(columns.relativeFilePath),
+				cursor.getString(columns.serverMsgId),
+				cursor.getString(columns.fingerprint),
+				cursor.getInt(columns.read) > 0,
+				cursor.getString(columns.edited),
+				cursor.getInt(columns.oob) > 0,
+				cursor.getString(columns.errorMessage),
+				ReadByMarker.fromJsonString(cursor.getString(columns.readByMarkers)),
+				cursor.getInt(columns.markable) > 0,
+				cursor.getInt(columns.deleted) > 0);
 	}
 
 	private static Jid fromString(String value) {
 		try {
 			if (value != null) {
-				return Jid.of(value);
+				return JidHelper.intern(value);
 			}
 		} catch (IllegalArgumentException e) {
 			return null;
@@ -368,6 +430,7 @@ public class Message extends AbstractEntity implements AvatarService.Avatarable
 
 	public void setRemoteMsgId(String id) {
 		this.remoteMsgId = id;
+		reindex();
 	}
 
 	public String getServerMsgId() {
@@ -376,6 +439,7 @@ public class Message extends AbstractEntity implements AvatarService.Avatarable
 
 	public void setServerMsgId(String id) {
 		this.serverMsgId = id;
+		reindex();
 	}
 
 	public boolean isRead() {
@@ -428,6 +492,7 @@ public class Message extends AbstractEntity implements AvatarService.Avatarable
 
 	public void putEdited(String edited, String serverMsgId) {
 		this.edits.add(new Edited(edited, serverMsgId));
+		reindex();
 	}
 
 	public boolean edited() {
@@ -515,6 +580,19 @@ public class Message extends AbstractEntity implements AvatarService.Avatarable
 		}
 	}
 
+	/**
+	 * Rough estimate of the memory retained by this message: a fixed overhead for the object and
+	 * its fields plus two bytes per character of the strings it holds.
+	 */
+	public int getEstimatedHeapSize() {
+		return 256 + 2 * (length(uuid) + length(body) + length(remoteMsgId) + length(serverMsgId)
+				+ length(relativeFilePath) + length(axolotlFingerprint) + length(errorMessage));
+	}
+
+	private static int length(final String value) {
+		return value == null ? 0 : value.length();
+	}
+
 	public Message next() {
 		if (this.conversation instanceof Conversation) {
 			final Conversation conversation = (Conversation) this.conversation;
@@ -707,6 +785,13 @@ public class Message extends AbstractEntity implements AvatarService.Avatarable
 
 	public void setUuid(String uuid) {
 		this.uuid = uuid;
+		reindex();
+	}
+
+	private void reindex() {
+		if (this.conversation instanceof Conversation) {
+			((Conversation) this.conversation).reindex(this);
+		}
 	}
 
 	public String getEditedId() {
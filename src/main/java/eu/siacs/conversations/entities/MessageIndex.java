@@ -0,0 +1,103 @@
+package eu.siacs.conversations.entities;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Hash indexes over the messages of a conversation by uuid, remote id and server id. Previous ids
+ * of corrected messages are indexed as well. Ids of a message may change after it was indexed; the
+ * message is then indexed again under its new ids while the old entries stay around until the
+ * next rebuild. Lookups therefore only return candidates, callers have to check the current ids.
+ * Not thread safe; callers synchronize on the message list of the conversation.
+ */
+class MessageIndex {
+
+	private final HashMap<String, Object> byUuid = new HashMap<>();
+	private final HashMap<String, Object> byRemoteMsgId = new HashMap<>();
+	private final HashMap<String, Object> byServerMsgId = new HashMap<>();
+
+	void add(final Message message) {
+		message.indexed = true;
+		put(byUuid, message.getUuid(), message);
+		put(byRemoteMsgId, message.getRemoteMsgId(), message);
+		put(byServerMsgId, message.getServerMsgId(), message);
+		for (Edited edited : message.edits) {
+			put(byRemoteMsgId, edited.getEditedId(), message);
+			put(byServerMsgId, edited.getServerMsgId(), message);
+		}
+	}
+
+	void rebuild(final List<Message> messages) {
+		clear();
+		for (Message message : messages) {
+			add(message);
+		}
+	}
+
+	void clear() {
+		for (Object value : byUuid.values()) {
+			if (value instanceof Message) {
+				((Message) value).indexed = false;
+			} else {
+				for (Message message : castToList(value)) {
+					message.indexed = false;
+				}
+			}
+		}
+		byUuid.clear();
+		byRemoteMsgId.clear();
+		byServerMsgId.clear();
+	}
+
+	List<Message> withUuid(final String uuid) {
+		return get(byUuid, uuid);
+	}
+
+	List<Message> withRemoteMsgId(final String remoteMsgId) {
+		return get(byRemoteMsgId, remoteMsgId);
+	}
+
+	List<Message> withServerMsgId(final String serverMsgId) {
+		return get(byServerMsgId, serverMsgId);
+	}
+
+	private static void put(final HashMap<String, Object> index, final String key, final Message message) {
+		if (key == null) {
+			return;
+		}
+		final Object value = index.get(key);
+		if (value == null) {
+			index.put(key, message);
+		} else if (value instanceof Message) {
+			if (value != message) {
+				final ArrayList<Message> list = new ArrayList<>(2);
+				list.add((Message) value);
+				list.add(message);
+				index.put(key, list);
+			}
+		} else {
+			final ArrayList<Message> list = castToList(value);
+			if (!list.contains(message)) {
+				list.add(message);
+			}
+		}
+	}
+
+	private static List<Message> get(final HashMap<String, Object> index, final String key) {
+		final Object value = key == null ? null : index.get(key);
+		if (value == null) {
+			return Collections.emptyList();
+		} else if (value instanceof Message) {
+			return Collections.singletonList((Message) value);
+		} else {
+			return castToList(value);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static ArrayList<Message> castToList(final Object value) {
+		return (ArrayList<Message>) value;
+	}
+}
@@ -384,7 +384,7 @@ public class MessageParser extends AbstractParser implements OnMessagePacketRece
                     return;
                 }
                 status = Message.STATUS_RECEIVED;
-                if (remoteMsgId != null && conversation.findMessageWithRemoteId(remoteMsgId, counterpart) != null) {
+                if (remoteMsgId != null && mXmppConnectionService.findMessageWithRemoteId(conversation, remoteMsgId, counterpart) != null) {
                     return;
                 }
             }
@@ -521,7 +521,7 @@ public class MessageParser extends AbstractParser implements OnMessagePacketRece
             }
 
             if (replacementId != null && mXmppConnectionService.allowMessageCorrection()) {
-                final Message replacedMessage = conversation.findMessageWithRemoteIdAndCounterpart(replacementId,
+                final Message replacedMessage = mXmppConnectionService.findMessageWithRemoteIdAndCounterpart(conversation, replacementId,
                         counterpart,
                         message.getStatus() == Message.STATUS_RECEIVED,
                         message.isCarbon());
@@ -581,7 +581,10 @@ public class MessageParser extends AbstractParser implements OnMessagePacketRece
                     || message.getServerMsgId() != null
                     || (query == null && mXmppConnectionService.getMessageArchiveService().isCatchupInProgress(conversation));
             if (checkForDuplicates) {
-                final Message duplicate = conversation.findDuplicateMessage(message);
+                Message duplicate = conversation.findDuplicateMessage(message);
+                if (duplicate == null && conversation.mightHaveEvicted(message.getTimeSent())) {
+                    duplicate = Conversation.findDuplicateMessage(mXmppConnectionService.databaseBackend.getPossibleDuplicates(conversation, message), message);
+                }
                 if (duplicate != null) {
                     final boolean serverMsgIdUpdated;
                     if (duplicate.getStatus() != Message.STATUS_RECEIVED
@@ -644,7 +647,7 @@ public class MessageParser extends AbstractParser implements OnMessagePacketRece
                 processMessageReceipts(account, packet, query);
             }
 
-            mXmppConnectionService.databaseBackend.createMessage(message);
+            mXmppConnectionService.databaseBackend.createMessageDeferred(message);
             final HttpConnectionManager manager = this.mXmppConnectionService.getHttpConnectionManager();
             if (message.trusted() && message.treatAsDownloadable() && manager.getAutoAcceptFileSize() > 0) {
                 manager.createNewDownloadConnection(message);
@@ -766,7 +769,7 @@ public class MessageParser extends AbstractParser implements OnMessagePacketRece
             } else if (isTypeGroupChat) {
                 Conversation conversation = mXmppConnectionService.find(account, counterpart.asBareJid());
                 if (conversation != null && id != null && sender != null) {
-                    Message message = conversation.findMessageWithRemoteId(id, sender);
+                    Message message = mXmppConnectionService.findMessageWithRemoteId(conversation, id, sender);
                     if (message != null) {
                         final Jid fallback = conversation.getMucOptions().getTrueCounterpart(counterpart);
                         final Jid trueJid = getTrueCounterpart((query != null && query.safeToExtractTrueCounterpart()) ? mucUserElement : null, fallback);
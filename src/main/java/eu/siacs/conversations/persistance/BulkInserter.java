@@ -0,0 +1,162 @@
+package eu.siacs.conversations.persistance;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Inserts large numbers of rows, for example while restoring a backup. Every combination of table
+ * and columns is compiled into an INSERT statement once; rows are bound to it by type and
+ * committed in transactions of {@link #TRANSACTION_SIZE} rows. Table and column names are
+ * checked to be plain identifiers before they become part of a statement.
+ * <p>
+ * Nothing besides the rows themselves is done during the load. In particular the full text index
+ * is not touched, since {@link MessageSearchIndex} only picks up new messages when it is updated.
+ */
+public class BulkInserter {
+
+    private static final int TRANSACTION_SIZE = 10000;
+    private static final Pattern IDENTIFIER = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
+
+    private final SQLiteDatabase db;
+    private final HashMap<String, SQLiteStatement> statements = new HashMap<>();
+    private final long start = SystemClock.elapsedRealtime();
+
+    private String lastTable = null;
+    private String[] lastColumns = null;
+    private SQLiteStatement lastStatement = null;
+
+    private boolean inTransaction = false;
+    private int uncommitted = 0;
+    private long rows = 0;
+    private long transactions = 0;
+
+    public BulkInserter(final SQLiteDatabase db) {
+        this.db = db;
+    }
+
+    /**
+     * Inserts one row. Values must be null, Long, Double, String or byte[].
+     *
+     * @throws android.database.SQLException if the row violates a constraint
+     */
+    public void insert(final String table, final String[] columns, final Object[] values) {
+        if (values.length != columns.length) {
+            throw new IllegalArgumentException("expected " + columns.length + " values but got " + values.length);
+        }
+        final SQLiteStatement statement = getStatement(table, columns);
+        if (!inTransaction) {
+            db.beginTransaction();
+            inTransaction = true;
+        }
+        for (int i = 0; i < values.length; ++i) {
+            bind(statement, i + 1, values[i]);
+        }
+        statement.executeInsert();
+        ++rows;
+        if (++uncommitted >= TRANSACTION_SIZE) {
+            commit();
+        }
+    }
+
+    private static void bind(final SQLiteStatement statement, final int index, final Object value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else if (value instanceof Long || value instanceof Integer) {
+            statement.bindLong(index, ((Number) value).longValue());
+        } else if (value instanceof Double || value instanceof Float) {
+            statement.bindDouble(index, ((Number) value).doubleValue());
+        } else if (value instanceof byte[]) {
+            statement.bindBlob(index, (byte[]) value);
+        } else {
+            statement.bindString(index, value.toString());
+        }
+    }
+
+    private SQLiteStatement getStatement(final String table, final String[] columns) {
+        if (lastStatement != null && table.equals(lastTable) && (columns == lastColumns || Arrays.equals(columns, lastColumns))) {
+            return lastStatement;
+        }
+        final StringBuilder builder = new StringBuilder();
+        builder.append("INSERT INTO ").append(checkIdentifier(table)).append('(');
+        for (int i = 0; i < columns.length; ++i) {
+            if (i != 0) {
+                builder.append(',');
+            }
+            builder.append(checkIdentifier(columns[i]));
+        }
+        builder.append(") VALUES(");
+        for (int i = 0; i < columns.length; ++i) {
+            builder.append(i == 0 ? "?" : ",?");
+        }
+        builder.append(')');
+        final String sql = builder.toString();
+        SQLiteStatement statement = statements.get(sql);
+        if (statement == null) {
+            statement = db.compileStatement(sql);
+            statements.put(sql, statement);
+        }
+        lastTable = table;
+        lastColumns = columns;
+        lastStatement = statement;
+        return statement;
+    }
+
+    private static String checkIdentifier(final String identifier) {
+        if (!IDENTIFIER.matcher(identifier).matches()) {
+            throw new IllegalArgumentException("invalid identifier " + identifier);
+        }
+        return identifier;
+    }
+
+    /**
+     * Commits the rows inserted so far.
+     */
+    public void commit() {
+        if (inTransaction) {
+            try {
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+                inTransaction = false;
+            }
+            uncommitted = 0;
+            ++transactions;
+        }
+    }
+
+    /**
+     * Rolls back the rows that have not been committed yet and releases all statements.
+     */
+    public void close() {
+        if (inTransaction) {
+            db.endTransaction();
+            inTransaction = false;
+        }
+        for (SQLiteStatement statement : statements.values()) {
+            statement.close();
+        }
+        statements.clear();
+        lastStatement = null;
+    }
+
+    public long getRows() {
+        return rows;
+    }
+
+    public long getRowsPerSecond() {
+        return rows * 1000 / Math.max(1, SystemClock.elapsedRealtime() - start);
+    }
+
+    @Override
+    public String toString() {
+        return "rows=" + rows
+                + ", transactions=" + transactions
+                + ", statements=" + statements.size()
+                + ", " + getRowsPerSecond() + " rows/s";
+    }
+}
@@ -6,7 +6,9 @@ import android.database.Cursor;
 import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
 import android.os.Environment;
+import android.os.Looper;
 import android.os.SystemClock;
 import android.util.Base64;
 import android.util.Log;
@@ -27,6 +29,7 @@ import java.security.cert.CertificateEncodingException;
 import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -62,8 +65,16 @@ import rocks.xmpp.addr.Jid;
 public class DatabaseBackend extends SQLiteOpenHelper {
 
     private static final String DATABASE_NAME = "history";
-    private static final int DATABASE_VERSION = 44;
+    private static final int DATABASE_VERSION = 48;
+    private static final int CACHE_SIZE_KIB = 8 * 1024;
+    private static final long MMAP_SIZE = 64 * 1024 * 1024;
+    private static final int WAL_AUTOCHECKPOINT_PAGES = 4000;
+    private static final long JOURNAL_SIZE_LIMIT = 4 * 1024 * 1024;
+    private static final int CHECKPOINT_ATTEMPTS = 5;
+    private static final long CHECKPOINT_RETRY_DELAY = 200;
     private static DatabaseBackend instance = null;
+    private final MessageInsertQueue messageInsertQueue = new MessageInsertQueue(this);
+    private final MessageSearchIndex searchIndex = new MessageSearchIndex(this);
     private static String CREATE_CONTATCS_STATEMENT = "create table "
             + Contact.TABLENAME + "(" + Contact.ACCOUNT + " TEXT, "
             + Contact.SERVERNAME + " TEXT, " + Contact.SYSTEMNAME + " TEXT,"
@@ -130,6 +141,21 @@ public class DatabaseBackend extends SQLiteOpenHelper {
             + ") ON CONFLICT REPLACE"
             + ");";
 
+    private static String CREATE_FETCH_RESULTS_STATEMENT = "CREATE TABLE "
+            + SQLiteAxolotlStore.FETCH_RESULTS_TABLENAME + "("
+            + SQLiteAxolotlStore.ACCOUNT + " TEXT,  "
+            + SQLiteAxolotlStore.NAME + " TEXT, "
+            + SQLiteAxolotlStore.DEVICE_ID + " INTEGER, "
+            + SQLiteAxolotlStore.RESULT + " TEXT, "
+            + SQLiteAxolotlStore.TIMESTAMP + " NUMBER, FOREIGN KEY("
+            + SQLiteAxolotlStore.ACCOUNT
+            + ") REFERENCES " + Account.TABLENAME + "(" + Account.UUID + ") ON DELETE CASCADE, "
+            + "UNIQUE( " + SQLiteAxolotlStore.ACCOUNT + ", "
+            + SQLiteAxolotlStore.NAME + ", "
+            + SQLiteAxolotlStore.DEVICE_ID
+            + ") ON CONFLICT REPLACE"
+            + ");";
+
     private static String CREATE_IDENTITIES_STATEMENT = "CREATE TABLE "
             + SQLiteAxolotlStore.IDENTITIES_TABLENAME + "("
             + SQLiteAxolotlStore.ACCOUNT + " TEXT,  "
@@ -150,6 +176,9 @@ public class DatabaseBackend extends SQLiteOpenHelper {
             + ");";
 
     private static String RESOLVER_RESULTS_TABLENAME = "resolver_results";
+    private static final String CONVERSATION_SUMMARIES_TABLENAME = "conversation_summaries";
+    private static final int SUMMARY_PREVIEW_LENGTH = 256;
+    public static final int EXPIRY_CHUNK_SIZE = 500;
 
     private static String CREATE_RESOLVER_RESULTS_TABLE = "create table " + RESOLVER_RESULTS_TABLENAME + "("
             + Resolver.Result.DOMAIN + " TEXT,"
@@ -164,6 +193,7 @@ public class DatabaseBackend extends SQLiteOpenHelper {
 
     private static String CREATE_MESSAGE_TIME_INDEX = "create INDEX message_time_index ON " + Message.TABLENAME + "(" + Message.TIME_SENT + ")";
     private static String CREATE_MESSAGE_CONVERSATION_INDEX = "create INDEX message_conversation_index ON " + Message.TABLENAME + "(" + Message.CONVERSATION + ")";
+    private static String CREATE_MESSAGE_CONVERSATION_TIME_INDEX = "create INDEX message_conversation_time_index ON " + Message.TABLENAME + "(" + Message.CONVERSATION + "," + Message.TIME_SENT + "," + Message.UUID + ")";
     private static String CREATE_MESSAGE_DELETED_INDEX = "create index message_deleted_index ON " + Message.TABLENAME + "(" + Message.DELETED + ")";
     private static String CREATE_MESSAGE_RELATIVE_FILE_PATH_INDEX = "create INDEX message_file_path_index ON " + Message.TABLENAME + "(" + Message.RELATIVE_FILE_PATH + ")";
     private static String CREATE_MESSAGE_TYPE_INDEX = "create INDEX message_type_index ON " + Message.TABLENAME + "(" + Message.TYPE + ")";
@@ -171,6 +201,40 @@ public class DatabaseBackend extends SQLiteOpenHelper {
     private static String CREATE_MESSAGE_INDEX_TABLE = "CREATE VIRTUAL TABLE messages_index USING FTS4(uuid TEXT PRIMARY KEY, body TEXT)";
     private static String CREATE_MESSAGE_INSERT_TRIGGER = "CREATE TRIGGER after_message_insert AFTER INSERT ON " + Message.TABLENAME + " BEGIN INSERT INTO messages_index (uuid,body) VALUES (new.uuid,new.body); END;";
     private static String CREATE_MESSAGE_UPDATE_TRIGGER = "CREATE TRIGGER after_message_update UPDATE of uuid,body ON " + Message.TABLENAME + " BEGIN update messages_index set body=new.body,uuid=new.uuid WHERE uuid=old.uuid; END;";
+    // one row per conversation with its latest message and the number of messages after the last
+    // read one. kept up to date by the triggers below so the overview does not need the messages
+    private static String CREATE_CONVERSATION_SUMMARIES_TABLE = "CREATE TABLE " + CONVERSATION_SUMMARIES_TABLENAME + " ("
+            + "conversationUuid TEXT PRIMARY KEY, lastMessageUuid TEXT, lastMessageTime NUMBER DEFAULT 0, preview TEXT, "
+            + "unread NUMBER DEFAULT 0, lastRead NUMBER DEFAULT 0, FOREIGN KEY(conversationUuid) REFERENCES "
+            + Conversation.TABLENAME + "(" + Conversation.UUID + ") ON DELETE CASCADE);";
+    private static String CREATE_CONVERSATION_SUMMARIES_TIME_INDEX = "CREATE INDEX conversation_summaries_time_index ON " + CONVERSATION_SUMMARIES_TABLENAME + "(lastMessageTime)";
+    private static String LATEST_MESSAGE = "select %s from messages where conversationUuid=%s order by timeSent desc, uuid desc limit 1";
+    private static String CREATE_SUMMARY_INSERT_TRIGGER = "CREATE TRIGGER after_message_insert_summary AFTER INSERT ON " + Message.TABLENAME + " BEGIN "
+            + "INSERT INTO conversation_summaries(conversationUuid) SELECT new.conversationUuid WHERE NOT EXISTS (SELECT 1 FROM conversation_summaries WHERE conversationUuid=new.conversationUuid); "
+            + "UPDATE conversation_summaries SET lastMessageUuid=new.uuid,lastMessageTime=new.timeSent,preview=substr(new.body,1," + SUMMARY_PREVIEW_LENGTH + ") WHERE conversationUuid=new.conversationUuid AND (lastMessageUuid IS NULL OR new.timeSent>=lastMessageTime); "
+            + "UPDATE conversation_summaries SET unread=unread+1 WHERE conversationUuid=new.conversationUuid AND new.read=0 AND new.timeSent>lastRead; "
+            + "END;";
+    private static String CREATE_SUMMARY_READ_TRIGGER = "CREATE TRIGGER after_message_read_summary AFTER UPDATE OF read ON " + Message.TABLENAME + " WHEN old.read IS NOT new.read BEGIN "
+            + "UPDATE conversation_summaries SET lastRead=max(lastRead,new.timeSent) WHERE conversationUuid=new.conversationUuid AND new.read=1; "
+            + "UPDATE conversation_summaries SET unread=(SELECT count(*) FROM messages WHERE conversationUuid=new.conversationUuid AND read=0 AND timeSent>conversation_summaries.lastRead) WHERE conversationUuid=new.conversationUuid; "
+            + "END;";
+    private static String CREATE_SUMMARY_BODY_TRIGGER = "CREATE TRIGGER after_message_body_summary AFTER UPDATE OF body ON " + Message.TABLENAME + " WHEN old.body IS NOT new.body BEGIN "
+            + "UPDATE conversation_summaries SET preview=substr(new.body,1," + SUMMARY_PREVIEW_LENGTH + ") WHERE conversationUuid=new.conversationUuid AND lastMessageUuid=new.uuid; "
+            + "END;";
+    private static String CREATE_SUMMARY_DELETE_TRIGGER = "CREATE TRIGGER after_message_delete_summary AFTER DELETE ON " + Message.TABLENAME + " BEGIN "
+            + "UPDATE conversation_summaries SET unread=unread-1 WHERE conversationUuid=old.conversationUuid AND old.read=0 AND old.timeSent>lastRead AND unread>0; "
+            + "UPDATE conversation_summaries SET lastMessageUuid=(" + String.format(LATEST_MESSAGE, "uuid", "old.conversationUuid") + "),"
+            + "lastMessageTime=coalesce((" + String.format(LATEST_MESSAGE, "timeSent", "old.conversationUuid") + "),0),"
+            + "preview=(" + String.format(LATEST_MESSAGE, "substr(body,1," + SUMMARY_PREVIEW_LENGTH + ")", "old.conversationUuid") + ") "
+            + "WHERE conversationUuid=old.conversationUuid AND lastMessageUuid=old.uuid; "
+            + "END;";
+    private static String COPY_PREEXISTING_SUMMARIES = "INSERT INTO " + CONVERSATION_SUMMARIES_TABLENAME + "(conversationUuid,lastMessageUuid,lastMessageTime,preview,lastRead) SELECT uuid,"
+            + "(" + String.format(LATEST_MESSAGE, "uuid", "c.uuid") + "),"
+            + "coalesce((" + String.format(LATEST_MESSAGE, "timeSent", "c.uuid") + "),0),"
+            + "(" + String.format(LATEST_MESSAGE, "substr(body,1," + SUMMARY_PREVIEW_LENGTH + ")", "c.uuid") + "),"
+            + "coalesce((SELECT max(timeSent) FROM messages WHERE conversationUuid=c.uuid AND read=1),0) FROM " + Conversation.TABLENAME + " c;";
+    private static String COUNT_PREEXISTING_UNREAD = "UPDATE " + CONVERSATION_SUMMARIES_TABLENAME + " SET unread=(SELECT count(*) FROM messages WHERE conversationUuid=conversation_summaries.conversationUuid AND read=0 AND timeSent>conversation_summaries.lastRead);";
+
     private static String COPY_PREEXISTING_ENTRIES = "INSERT into messages_index(uuid,body) select uuid,body FROM " + Message.TABLENAME + ";";
 
     private DatabaseBackend(Context context) {
@@ -191,10 +255,79 @@ public class DatabaseBackend extends SQLiteOpenHelper {
         return instance;
     }
 
+    private static void pragma(final SQLiteDatabase db, final String pragma) {
+        final Cursor cursor = db.rawQuery("PRAGMA " + pragma, null);
+        try {
+            cursor.moveToFirst();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Runs on the primary connection only. The connections that serve reads outside of a
+     * transaction in WAL mode are opened by the framework's connection pool, which has no hook
+     * for pragmas, so they keep SQLite's defaults. That is fine for synchronous, secure_delete,
+     * wal_autocheckpoint and journal_size_limit, which only matter when writing, and all writes
+     * and transactions run on the primary connection. The larger cache and the memory mapping,
+     * however, only speed up the primary connection: group commits, index updates, expiry and
+     * restores. Plain queries from the UI use the default cache of the reader connections.
+     */
     @Override
     public void onConfigure(SQLiteDatabase db) {
         db.execSQL("PRAGMA foreign_keys=ON");
-        db.rawQuery("PRAGMA secure_delete=ON", null);
+        pragma(db, "secure_delete=ON");
+        db.enableWriteAheadLogging();
+        pragma(db, "synchronous=NORMAL");
+        pragma(db, "cache_size=-" + CACHE_SIZE_KIB);
+        pragma(db, "mmap_size=" + MMAP_SIZE);
+        pragma(db, "wal_autocheckpoint=" + WAL_AUTOCHECKPOINT_PAGES);
+        pragma(db, "journal_size_limit=" + JOURNAL_SIZE_LIMIT);
+    }
+
+    /**
+     * Copies the write-ahead log back into the database. A passive checkpoint is cheap and does
+     * not wait for readers; it is run whenever the service becomes idle. After deleting content a
+     * truncating checkpoint is run so deleted rows (overwritten because of secure_delete) do not
+     * linger in the log. It is retried a few times if a reader kept it from completing.
+     * <p>
+     * TRUNCATE requires SQLite 3.8.8, which ships with Android 6. Older versions fall back to
+     * RESTART: the log is rewritten from the start by the next transaction and shrunk to
+     * journal_size_limit, so stale frames are bounded by that limit instead of removed right away.
+     */
+    public void checkpoint(final boolean truncate) {
+        final String mode;
+        if (!truncate) {
+            mode = "PASSIVE";
+        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            mode = "TRUNCATE";
+        } else {
+            mode = "RESTART";
+        }
+        for (int attempt = 1; walCheckpoint(mode); ++attempt) {
+            if (attempt >= CHECKPOINT_ATTEMPTS) {
+                Log.w(Config.LOGTAG, "wal checkpoint (" + mode + ") still busy after " + attempt + " attempts");
+                return;
+            }
+            SystemClock.sleep(CHECKPOINT_RETRY_DELAY);
+        }
+    }
+
+    /**
+     * @return true if the checkpoint could not complete because of concurrent readers or writers
+     */
+    private boolean walCheckpoint(final String mode) {
+        final long start = SystemClock.elapsedRealtime();
+        final Cursor cursor = getWritableDatabase().rawQuery("PRAGMA wal_checkpoint(" + mode + ")", null);
+        try {
+            if (cursor.moveToFirst() && cursor.getColumnCount() >= 3) {
+                Log.d(Config.LOGTAG, "wal checkpoint (" + mode + ", busy=" + cursor.getInt(0) + ", log=" + cursor.getInt(1) + ", checkpointed=" + cursor.getInt(2) + ") took " + (SystemClock.elapsedRealtime() - start) + "ms");
+                return cursor.getInt(0) != 0;
+            }
+            return false;
+        } finally {
+            cursor.close();
+        }
     }
 
     @Override
@@ -244,7 +377,7 @@ public class DatabaseBackend extends SQLiteOpenHelper {
                 + Conversation.TABLENAME + "(" + Conversation.UUID
                 + ") ON DELETE CASCADE);");
         db.execSQL(CREATE_MESSAGE_TIME_INDEX);
-        db.execSQL(CREATE_MESSAGE_CONVERSATION_INDEX);
+        db.execSQL(CREATE_MESSAGE_CONVERSATION_TIME_INDEX);
         db.execSQL(CREATE_MESSAGE_DELETED_INDEX);
         db.execSQL(CREATE_MESSAGE_RELATIVE_FILE_PATH_INDEX);
         db.execSQL(CREATE_MESSAGE_TYPE_INDEX);
@@ -256,9 +389,18 @@ public class DatabaseBackend extends SQLiteOpenHelper {
         db.execSQL(CREATE_IDENTITIES_STATEMENT);
         db.execSQL(CREATE_PRESENCE_TEMPLATES_STATEMENT);
         db.execSQL(CREATE_RESOLVER_RESULTS_TABLE);
-        db.execSQL(CREATE_MESSAGE_INDEX_TABLE);
-        db.execSQL(CREATE_MESSAGE_INSERT_TRIGGER);
-        db.execSQL(CREATE_MESSAGE_UPDATE_TRIGGER);
+        MessageSearchIndex.create(db);
+        createConversationSummaries(db);
+        db.execSQL(CREATE_FETCH_RESULTS_STATEMENT);
+    }
+
+    private static void createConversationSummaries(SQLiteDatabase db) {
+        db.execSQL(CREATE_CONVERSATION_SUMMARIES_TABLE);
+        db.execSQL(CREATE_CONVERSATION_SUMMARIES_TIME_INDEX);
+        db.execSQL(CREATE_SUMMARY_INSERT_TRIGGER);
+        db.execSQL(CREATE_SUMMARY_READ_TRIGGER);
+        db.execSQL(CREATE_SUMMARY_BODY_TRIGGER);
+        db.execSQL(CREATE_SUMMARY_DELETE_TRIGGER);
     }
 
     @Override
@@ -540,6 +682,29 @@ public class DatabaseBackend extends SQLiteOpenHelper {
             db.execSQL(CREATE_MESSAGE_RELATIVE_FILE_PATH_INDEX);
             db.execSQL(CREATE_MESSAGE_TYPE_INDEX);
         }
+
+        if (oldVersion < 45 && newVersion >= 45) {
+            db.execSQL(CREATE_MESSAGE_CONVERSATION_TIME_INDEX);
+            db.execSQL("DROP INDEX IF EXISTS message_conversation_index");
+        }
+
+        if (oldVersion < 46 && newVersion >= 46) {
+            createConversationSummaries(db);
+            db.execSQL(COPY_PREEXISTING_SUMMARIES);
+            db.execSQL(COUNT_PREEXISTING_UNREAD);
+        }
+
+        if (oldVersion < 47 && newVersion >= 47) {
+            //the new index is filled incrementally by MessageSearchIndex.update()
+            db.execSQL("DROP TRIGGER IF EXISTS after_message_insert");
+            db.execSQL("DROP TRIGGER IF EXISTS after_message_update");
+            db.execSQL("DROP TABLE IF EXISTS messages_index");
+            MessageSearchIndex.create(db);
+        }
+
+        if (oldVersion < 48 && newVersion >= 48) {
+            db.execSQL(CREATE_FETCH_RESULTS_STATEMENT);
+        }
     }
 
     private void canonicalizeJids(SQLiteDatabase db) {
@@ -627,10 +792,42 @@ public class DatabaseBackend extends SQLiteOpenHelper {
     }
 
     public void createMessage(Message message) {
+        flushPendingMessages();
         SQLiteDatabase db = this.getWritableDatabase();
         db.insert(Message.TABLENAME, null, message.getContentValues());
     }
 
+    /**
+     * Queues the message to be inserted together with other incoming messages. Reads and updates
+     * through this class flush the queue first, so they always see queued messages.
+     */
+    public void createMessageDeferred(Message message) {
+        messageInsertQueue.add(message);
+    }
+
+    /**
+     * Commits queued incoming messages. On the UI thread the flush is only scheduled, because it
+     * may have to wait for another thread that holds the database; readers there can miss messages
+     * that arrived during the last few milliseconds.
+     *
+     * @return true if every queued message has been committed
+     */
+    public boolean flushPendingMessages() {
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            messageInsertQueue.flushAsync();
+            return false;
+        }
+        return messageInsertQueue.flush();
+    }
+
+    public MessageInsertQueue getMessageInsertQueue() {
+        return messageInsertQueue;
+    }
+
+    public MessageSearchIndex getSearchIndex() {
+        return searchIndex;
+    }
+
     public void createAccount(Account account) {
         SQLiteDatabase db = this.getWritableDatabase();
         db.insert(Account.TABLENAME, null, account.getContentValues());
@@ -717,8 +914,9 @@ public class DatabaseBackend extends SQLiteOpenHelper {
         Cursor cursor = db.rawQuery("select * from " + Conversation.TABLENAME
                 + " where " + Conversation.STATUS + " = ? and " + Conversation.CONTACTJID + " is not null order by "
                 + Conversation.CREATED + " desc", selectionArgs);
+        final Conversation.Columns columns = new Conversation.Columns(cursor);
         while (cursor.moveToNext()) {
-            final Conversation conversation = Conversation.fromCursor(cursor);
+            final Conversation conversation = Conversation.fromCursor(cursor, columns);
             if (conversation.getJid() instanceof InvalidJid) {
                 continue;
             }
@@ -728,49 +926,184 @@ public class DatabaseBackend extends SQLiteOpenHelper {
         return list;
     }
 
+    /**
+     * Loads the latest message and the number of unread messages of every open conversation from
+     * the summary table. Meant to fill the conversation overview before the messages are restored.
+     */
+    public void restoreConversationSummaries(final List<Conversation> conversations) {
+        flushPendingMessages();
+        final Map<String, Conversation> lookup = new HashMap<>();
+        for (Conversation conversation : conversations) {
+            lookup.put(conversation.getUuid(), conversation);
+        }
+        final SQLiteDatabase db = this.getReadableDatabase();
+        final String sql = "select " + Message.TABLENAME + ".*,summary.unread from " + CONVERSATION_SUMMARIES_TABLENAME + " summary"
+                + " join " + Conversation.TABLENAME + " on " + Conversation.TABLENAME + "." + Conversation.UUID + "=summary.conversationUuid"
+                + " join " + Message.TABLENAME + " on " + Message.TABLENAME + "." + Message.UUID + "=summary.lastMessageUuid"
+                + " where " + Conversation.TABLENAME + "." + Conversation.STATUS + "=?";
+        final Cursor cursor = db.rawQuery(sql, new String[]{String.valueOf(Conversation.STATUS_AVAILABLE)});
+        final Message.Columns columns = new Message.Columns(cursor);
+        final int unread = cursor.getColumnIndex("unread");
+        while (cursor.moveToNext()) {
+            final Conversation conversation = lookup.remove(cursor.getString(columns.getConversation()));
+            if (conversation != null) {
+                try {
+                    conversation.setSummary(Message.fromCursor(cursor, columns, conversation), cursor.getInt(unread));
+                } catch (Exception e) {
+                    Log.e(Config.LOGTAG, "unable to restore summary of " + conversation.getJid());
+                }
+            }
+        }
+        cursor.close();
+    }
+
     public ArrayList<Message> getMessages(Conversation conversations, int limit) {
         return getMessages(conversations, limit, -1);
     }
 
     public ArrayList<Message> getMessages(Conversation conversation, int limit, long timestamp) {
-        ArrayList<Message> list = new ArrayList<>();
+        return getMessages(conversation, limit, timestamp, null);
+    }
+
+    /**
+     * Loads the page of messages that precede the message identified by (timestamp, uuid). Pages
+     * are keyed on (timeSent, uuid) so that messages sharing a timestamp are neither skipped nor
+     * loaded twice. Without a uuid every message sent at exactly that timestamp is excluded.
+     */
+    public ArrayList<Message> getMessages(Conversation conversation, int limit, long timestamp, String uuid) {
+        flushPendingMessages();
+        final ArrayDeque<Message> messages = new ArrayDeque<>();
         SQLiteDatabase db = this.getReadableDatabase();
+        final String orderBy = Message.TIME_SENT + " DESC," + Message.UUID + " DESC";
         Cursor cursor;
         if (timestamp == -1) {
             String[] selectionArgs = {conversation.getUuid()};
             cursor = db.query(Message.TABLENAME, null, Message.CONVERSATION
-                    + "=?", selectionArgs, null, null, Message.TIME_SENT
-                    + " DESC", String.valueOf(limit));
-        } else {
+                    + "=?", selectionArgs, null, null, orderBy, String.valueOf(limit));
+        } else if (uuid == null) {
             String[] selectionArgs = {conversation.getUuid(),
                     Long.toString(timestamp)};
             cursor = db.query(Message.TABLENAME, null, Message.CONVERSATION
                             + "=? and " + Message.TIME_SENT + "<?", selectionArgs,
-                    null, null, Message.TIME_SENT + " DESC",
-                    String.valueOf(limit));
+                    null, null, orderBy, String.valueOf(limit));
+        } else {
+            final String time = Long.toString(timestamp);
+            String[] selectionArgs = {conversation.getUuid(), time, time, uuid};
+            cursor = db.query(Message.TABLENAME, null, Message.CONVERSATION
+                            + "=? and (" + Message.TIME_SENT + "<? or (" + Message.TIME_SENT + "=? and " + Message.UUID + "<?))", selectionArgs,
+                    null, null, orderBy, String.valueOf(limit));
         }
+        final Message.Columns columns = new Message.Columns(cursor);
         while (cursor.moveToNext()) {
             try {
-                final Message message = Message.fromCursor(cursor, conversation);
+                final Message message = Message.fromCursor(cursor, columns, conversation);
                 if (message != null) {
-                    list.add(0, message);
+                    messages.addFirst(message);
                 }
             } catch (Exception e) {
                 Log.e(Config.LOGTAG,"unable to restore message");
             }
         }
         cursor.close();
-        return list;
+        return new ArrayList<>(messages);
     }
 
+    /**
+     * Messages of the conversation, sent at or before the given time, whose uuid or remote id
+     * equals the given id. Used to look up messages that are no longer held in memory.
+     */
+    public List<Message> getMessagesWithId(Conversation conversation, String id, long sentUpTo) {
+        flushPendingMessages();
+        final List<Message> messages = new ArrayList<>();
+        final SQLiteDatabase db = this.getReadableDatabase();
+        final String[] args = {conversation.getUuid(), String.valueOf(sentUpTo), id, id};
+        final Cursor cursor = db.query(Message.TABLENAME, null, Message.CONVERSATION + "=? and " + Message.TIME_SENT + "<=? and (" + Message.UUID + "=? or " + Message.REMOTE_MSG_ID + "=?)", args, null, null, null);
+        final Message.Columns columns = new Message.Columns(cursor);
+        while (cursor.moveToNext()) {
+            messages.add(Message.fromCursor(cursor, columns, conversation));
+        }
+        cursor.close();
+        return messages;
+    }
+
+    /**
+     * The newest message of the conversation, sent at or before the given time, that was
+     * exchanged with the counterpart in the given direction. Mirrors {@link
+     * Conversation#findLastMessageWithCounterpart(Jid, boolean, boolean)} for evicted messages.
+     */
+    public Message getLastMessageWithCounterpart(Conversation conversation, Jid counterpart, boolean received, boolean carbon, long sentUpTo) {
+        flushPendingMessages();
+        final SQLiteDatabase db = this.getReadableDatabase();
+        final List<String> args = new ArrayList<>();
+        args.add(conversation.getUuid());
+        args.add(String.valueOf(sentUpTo));
+        args.add(counterpart.toString());
+        final StringBuilder selection = new StringBuilder();
+        selection.append(Message.CONVERSATION).append("=? and ").append(Message.TIME_SENT).append("<=? and ").append(Message.COUNTERPART).append("=? and ");
+        if (received) {
+            selection.append(Message.STATUS).append('=').append(Message.STATUS_RECEIVED);
+        } else {
+            selection.append(Message.STATUS).append("!=").append(Message.STATUS_RECEIVED).append(" and ").append(Message.CARBON).append("=?");
+            args.add(carbon ? "1" : "0");
+        }
+        final Cursor cursor = db.query(Message.TABLENAME, null, selection.toString(), args.toArray(new String[0]), null, null, Message.TIME_SENT + " desc", "1");
+        final Message message;
+        if (cursor.moveToFirst()) {
+            message = Message.fromCursor(cursor, new Message.Columns(cursor), conversation);
+        } else {
+            message = null;
+        }
+        cursor.close();
+        return message;
+    }
+
+    public List<Message> getPossibleDuplicates(Conversation conversation, Message message) {
+        final List<Message> candidates = new ArrayList<>();
+        final List<String> args = new ArrayList<>();
+        final StringBuilder ids = new StringBuilder();
+        args.add(conversation.getUuid());
+        if (message.getServerMsgId() != null) {
+            ids.append(Message.SERVER_MSG_ID).append("=?");
+            args.add(message.getServerMsgId());
+        }
+        if (message.getRemoteMsgId() != null) {
+            if (ids.length() > 0) {
+                ids.append(" or ");
+            }
+            ids.append(Message.REMOTE_MSG_ID).append("=? or ").append(Message.UUID).append("=?");
+            args.add(message.getRemoteMsgId());
+            args.add(message.getRemoteMsgId());
+        }
+        if (ids.length() == 0) {
+            return candidates;
+        }
+        flushPendingMessages();
+        final SQLiteDatabase db = this.getReadableDatabase();
+        final Cursor cursor = db.query(Message.TABLENAME, null, Message.CONVERSATION + "=? and (" + ids + ")", args.toArray(new String[0]), null, null, null);
+        final Message.Columns columns = new Message.Columns(cursor);
+        while (cursor.moveToNext()) {
+            candidates.add(Message.fromCursor(cursor, columns, conversation));
+        }
+        cursor.close();
+        return candidates;
+    }
+
+    /**
+     * Searches the full text index. The index is brought up to date by at most one batch, and not
+     * at all if an update is already running, so messages that have not been indexed yet (for
+     * example while the index is being filled after an upgrade) may be missing from the results.
+     */
     public Cursor getMessageSearchCursor(List<String> term) {
+        flushPendingMessages();
+        searchIndex.updateBatch();
         SQLiteDatabase db = this.getReadableDatabase();
-        String SQL = "SELECT " + Message.TABLENAME + ".*," + Conversation.TABLENAME + '.' + Conversation.CONTACTJID + ',' + Conversation.TABLENAME + '.' + Conversation.ACCOUNT + ',' + Conversation.TABLENAME + '.' + Conversation.MODE + " FROM " + Message.TABLENAME + " join " + Conversation.TABLENAME + " on " + Message.TABLENAME + '.' + Message.CONVERSATION + '=' + Conversation.TABLENAME + '.' + Conversation.UUID + " join messages_index ON messages_index.uuid=messages.uuid where " + Message.ENCRYPTION + " NOT IN(" + Message.ENCRYPTION_AXOLOTL_NOT_FOR_THIS_DEVICE + ',' + Message.ENCRYPTION_PGP + ',' + Message.ENCRYPTION_DECRYPTION_FAILED + ',' + Message.ENCRYPTION_AXOLOTL_FAILED + ") AND " + Message.TYPE + " IN(" + Message.TYPE_TEXT + ',' + Message.TYPE_PRIVATE + ") AND messages_index.body MATCH ? ORDER BY " + Message.TIME_SENT + " DESC limit " + Config.MAX_SEARCH_RESULTS;
+        String SQL = "SELECT " + Message.TABLENAME + ".*," + MessageSearchIndex.snippet() + ',' + Conversation.TABLENAME + '.' + Conversation.CONTACTJID + ',' + Conversation.TABLENAME + '.' + Conversation.ACCOUNT + ',' + Conversation.TABLENAME + '.' + Conversation.MODE + " FROM " + MessageSearchIndex.TABLENAME + " join " + Message.TABLENAME + " ON " + Message.TABLENAME + ".rowid=" + MessageSearchIndex.TABLENAME + ".docid join " + Conversation.TABLENAME + " on " + Message.TABLENAME + '.' + Message.CONVERSATION + '=' + Conversation.TABLENAME + '.' + Conversation.UUID + " where " + Message.ENCRYPTION + " NOT IN(" + Message.ENCRYPTION_AXOLOTL_NOT_FOR_THIS_DEVICE + ',' + Message.ENCRYPTION_PGP + ',' + Message.ENCRYPTION_DECRYPTION_FAILED + ',' + Message.ENCRYPTION_AXOLOTL_FAILED + ") AND " + Message.TYPE + " IN(" + Message.TYPE_TEXT + ',' + Message.TYPE_PRIVATE + ") AND " + MessageSearchIndex.TABLENAME + " MATCH ? ORDER BY " + Message.TABLENAME + '.' + Message.TIME_SENT + " DESC limit " + Config.MAX_SEARCH_RESULTS;
         Log.d(Config.LOGTAG, "search term: " + FtsUtils.toMatchString(term));
         return db.rawQuery(SQL, new String[]{FtsUtils.toMatchString(term)});
     }
 
     public List<String> markFileAsDeleted(final File file, final boolean internal) {
+        flushPendingMessages();
         SQLiteDatabase db = this.getReadableDatabase();
         String selection;
         String[] selectionArgs;
@@ -800,6 +1133,7 @@ public class DatabaseBackend extends SQLiteOpenHelper {
     }
 
     public void markFileAsDeleted(List<String> uuids) {
+        flushPendingMessages();
         SQLiteDatabase db = this.getReadableDatabase();
         final ContentValues contentValues = new ContentValues();
         final String where = Message.UUID + "=?";
@@ -813,6 +1147,7 @@ public class DatabaseBackend extends SQLiteOpenHelper {
     }
 
     public void markFilesAsChanged(List<FilePathInfo> files) {
+        flushPendingMessages();
         SQLiteDatabase db = this.getReadableDatabase();
         final String where = Message.UUID + "=?";
         db.beginTransaction();
@@ -826,6 +1161,7 @@ public class DatabaseBackend extends SQLiteOpenHelper {
     }
 
     public List<FilePathInfo> getFilePathInfo() {
+        flushPendingMessages();
         final SQLiteDatabase db = this.getReadableDatabase();
         final Cursor cursor = db.query(Message.TABLENAME, new String[]{Message.UUID, Message.RELATIVE_FILE_PATH, Message.DELETED}, "type in (1,2,5) and "+Message.RELATIVE_FILE_PATH+" is not null", null, null, null, null);
         final List<FilePathInfo> list = new ArrayList<>();
@@ -839,6 +1175,7 @@ public class DatabaseBackend extends SQLiteOpenHelper {
     }
 
     public List<FilePath> getRelativeFilePaths(String account, Jid jid, int limit) {
+        flushPendingMessages();
         SQLiteDatabase db = this.getReadableDatabase();
         final String SQL = "select uuid,relativeFilePath from messages where type in (1,2,5) and deleted=0 and "+Message.RELATIVE_FILE_PATH+" is not null and conversationUuid=(select uuid from conversations where accountUuid=? and (contactJid=? or contactJid like ?)) order by timeSent desc";
         final String[] args = {account, jid.toEscapedString(), jid.toEscapedString() + "/%"};
@@ -949,13 +1286,16 @@ public class DatabaseBackend extends SQLiteOpenHelper {
     }
 
     public boolean deleteAccount(Account account) {
+        flushPendingMessages();
         SQLiteDatabase db = this.getWritableDatabase();
         String[] args = {account.getUuid()};
         final int rows = db.delete(Account.TABLENAME, Account.UUID + "=?", args);
+        checkpoint(true);
         return rows == 1;
     }
 
     public boolean updateMessage(Message message, boolean includeBody) {
+        flushPendingMessages();
         SQLiteDatabase db = this.getWritableDatabase();
         String[] args = {message.getUuid()};
         ContentValues contentValues = message.getContentValues();
@@ -967,6 +1307,7 @@ public class DatabaseBackend extends SQLiteOpenHelper {
     }
 
     public boolean updateMessage(Message message, String uuid) {
+        flushPendingMessages();
         SQLiteDatabase db = this.getWritableDatabase();
         String[] args = {uuid};
         return db.update(Message.TABLENAME, message.getContentValues(), Message.UUID + "=?", args) == 1;
@@ -977,8 +1318,9 @@ public class DatabaseBackend extends SQLiteOpenHelper {
         Cursor cursor;
         String args[] = {roster.getAccount().getUuid()};
         cursor = db.query(Contact.TABLENAME, null, Contact.ACCOUNT + "=?", args, null, null, null);
+        final Contact.Columns columns = new Contact.Columns(cursor);
         while (cursor.moveToNext()) {
-            roster.initContact(Contact.fromCursor(cursor));
+            roster.initContact(Contact.fromCursor(cursor, columns));
         }
         cursor.close();
     }
@@ -1006,28 +1348,43 @@ public class DatabaseBackend extends SQLiteOpenHelper {
     }
 
     public void deleteMessagesInConversation(Conversation conversation) {
+        flushPendingMessages();
         long start = SystemClock.elapsedRealtime();
         final SQLiteDatabase db = this.getWritableDatabase();
         db.beginTransaction();
         String[] args = {conversation.getUuid()};
-        db.delete("messages_index", "uuid in (select uuid from messages where conversationUuid=?)", args);
         int num = db.delete(Message.TABLENAME, Message.CONVERSATION + "=?", args);
         db.setTransactionSuccessful();
         db.endTransaction();
+        checkpoint(true);
         Log.d(Config.LOGTAG, "deleted " + num + " messages for " + conversation.getJid().asBareJid() + " in " + (SystemClock.elapsedRealtime() - start) + "ms");
     }
 
-    public void expireOldMessages(long timestamp) {
+    /**
+     * Deletes up to {@link #EXPIRY_CHUNK_SIZE} of the oldest messages that are older than the
+     * timestamp, in one short transaction. Callers expire everything by running this once per
+     * task on the writer executor until fewer than {@link #EXPIRY_CHUNK_SIZE} rows are deleted,
+     * so other writers get their turn between chunks.
+     *
+     * @return the number of messages that have been deleted
+     */
+    public int expireOldMessages(long timestamp) {
+        flushPendingMessages();
         final String[] args = {String.valueOf(timestamp)};
-        SQLiteDatabase db = this.getReadableDatabase();
+        final String where = "rowid in (select rowid from " + Message.TABLENAME + " where " + Message.TIME_SENT + "<? order by " + Message.TIME_SENT + " limit " + EXPIRY_CHUNK_SIZE + ")";
+        final SQLiteDatabase db = this.getWritableDatabase();
         db.beginTransaction();
-        db.delete("messages_index", "uuid in (select uuid from messages where timeSent<?)", args);
-        db.delete(Message.TABLENAME, "timeSent<?", args);
-        db.setTransactionSuccessful();
-        db.endTransaction();
+        try {
+            final int deleted = db.delete(Message.TABLENAME, where, args);
+            db.setTransactionSuccessful();
+            return deleted;
+        } finally {
+            db.endTransaction();
+        }
     }
 
     public MamReference getLastMessageReceived(Account account) {
+        flushPendingMessages();
         Cursor cursor = null;
         try {
             SQLiteDatabase db = this.getReadableDatabase();
@@ -1050,6 +1407,7 @@ public class DatabaseBackend extends SQLiteOpenHelper {
     }
 
     public long getLastTimeFingerprintUsed(Account account, String fingerprint) {
+        flushPendingMessages();
         String SQL = "select messages.timeSent from accounts join conversations on accounts.uuid=conversations.accountUuid join messages on conversations.uuid=messages.conversationUuid where accounts.uuid=? and messages.axolotl_fingerprint=? order by messages.timesent desc limit 1";
         String[] args = {account.getUuid(), fingerprint};
         Cursor cursor = getReadableDatabase().rawQuery(SQL, args);
@@ -1162,14 +1520,22 @@ public class DatabaseBackend extends SQLiteOpenHelper {
         return count != 0;
     }
 
-    public void storeSession(Account account, SignalProtocolAddress contact, SessionRecord session) {
-        SQLiteDatabase db = this.getWritableDatabase();
-        ContentValues values = new ContentValues();
-        values.put(SQLiteAxolotlStore.NAME, contact.getName());
-        values.put(SQLiteAxolotlStore.DEVICE_ID, contact.getDeviceId());
-        values.put(SQLiteAxolotlStore.KEY, Base64.encodeToString(session.serialize(), Base64.DEFAULT));
-        values.put(SQLiteAxolotlStore.ACCOUNT, account.getUuid());
-        db.insert(SQLiteAxolotlStore.SESSION_TABLENAME, null, values);
+    public void storeSessions(Account account, Map<SignalProtocolAddress, byte[]> sessions) {
+        final SQLiteDatabase db = this.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (Map.Entry<SignalProtocolAddress, byte[]> entry : sessions.entrySet()) {
+                final ContentValues values = new ContentValues();
+                values.put(SQLiteAxolotlStore.NAME, entry.getKey().getName());
+                values.put(SQLiteAxolotlStore.DEVICE_ID, entry.getKey().getDeviceId());
+                values.put(SQLiteAxolotlStore.KEY, Base64.encodeToString(entry.getValue(), Base64.DEFAULT));
+                values.put(SQLiteAxolotlStore.ACCOUNT, account.getUuid());
+                db.insertOrThrow(SQLiteAxolotlStore.SESSION_TABLENAME, null, values);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
     }
 
     public void deleteSession(Account account, SignalProtocolAddress contact) {
@@ -1197,6 +1563,62 @@ public class DatabaseBackend extends SQLiteOpenHelper {
                 args);
     }
 
+    public void storeFetchResult(Account account, SignalProtocolAddress address, String result) {
+        SQLiteDatabase db = this.getWritableDatabase();
+        ContentValues values = new ContentValues();
+        values.put(SQLiteAxolotlStore.ACCOUNT, account.getUuid());
+        values.put(SQLiteAxolotlStore.NAME, address.getName());
+        values.put(SQLiteAxolotlStore.DEVICE_ID, address.getDeviceId());
+        values.put(SQLiteAxolotlStore.RESULT, result);
+        values.put(SQLiteAxolotlStore.TIMESTAMP, System.currentTimeMillis());
+        db.insert(SQLiteAxolotlStore.FETCH_RESULTS_TABLENAME, null, values);
+    }
+
+    public void deleteFetchResult(Account account, SignalProtocolAddress address) {
+        SQLiteDatabase db = this.getWritableDatabase();
+        String[] args = {account.getUuid(), address.getName(), Integer.toString(address.getDeviceId())};
+        db.delete(SQLiteAxolotlStore.FETCH_RESULTS_TABLENAME,
+                SQLiteAxolotlStore.ACCOUNT + "=? AND "
+                        + SQLiteAxolotlStore.NAME + "=? AND "
+                        + SQLiteAxolotlStore.DEVICE_ID + "=?",
+                args);
+    }
+
+    public void deleteFetchErrors(Account account, String name) {
+        SQLiteDatabase db = this.getWritableDatabase();
+        String[] args = {account.getUuid(), name};
+        db.delete(SQLiteAxolotlStore.FETCH_RESULTS_TABLENAME,
+                SQLiteAxolotlStore.ACCOUNT + "=? AND "
+                        + SQLiteAxolotlStore.NAME + "=? AND "
+                        + SQLiteAxolotlStore.DEVICE_ID + "!=0",
+                args);
+    }
+
+    /**
+     * Drops expired results and returns the remaining ones. Device lists are stored with device
+     * id 0; every other row is a bundle that could not be fetched.
+     */
+    public Map<SignalProtocolAddress, String> getFetchResults(Account account, long deviceListsNotBefore, long errorsNotBefore) {
+        SQLiteDatabase db = this.getWritableDatabase();
+        db.delete(SQLiteAxolotlStore.FETCH_RESULTS_TABLENAME,
+                SQLiteAxolotlStore.ACCOUNT + "=? AND (("
+                        + SQLiteAxolotlStore.DEVICE_ID + "=0 AND " + SQLiteAxolotlStore.TIMESTAMP + "<?) OR ("
+                        + SQLiteAxolotlStore.DEVICE_ID + "!=0 AND " + SQLiteAxolotlStore.TIMESTAMP + "<?))",
+                new String[]{account.getUuid(), String.valueOf(deviceListsNotBefore), String.valueOf(errorsNotBefore)});
+        final Map<SignalProtocolAddress, String> results = new HashMap<>();
+        final String[] columns = {SQLiteAxolotlStore.NAME, SQLiteAxolotlStore.DEVICE_ID, SQLiteAxolotlStore.RESULT};
+        final Cursor cursor = db.query(SQLiteAxolotlStore.FETCH_RESULTS_TABLENAME,
+                columns,
+                SQLiteAxolotlStore.ACCOUNT + "=?",
+                new String[]{account.getUuid()},
+                null, null, null);
+        while (cursor.moveToNext()) {
+            results.put(new SignalProtocolAddress(cursor.getString(0), cursor.getInt(1)), cursor.getString(2));
+        }
+        cursor.close();
+        return results;
+    }
+
     private Cursor getCursorForPreKey(Account account, int preKeyId) {
         SQLiteDatabase db = this.getReadableDatabase();
         String[] columns = {SQLiteAxolotlStore.KEY};
@@ -1604,9 +2026,14 @@ public class DatabaseBackend extends SQLiteOpenHelper {
         db.delete(SQLiteAxolotlStore.IDENTITIES_TABLENAME,
                 SQLiteAxolotlStore.ACCOUNT + " = ?",
                 deleteArgs);
+        db.delete(SQLiteAxolotlStore.FETCH_RESULTS_TABLENAME,
+                SQLiteAxolotlStore.ACCOUNT + " = ?",
+                deleteArgs);
+        checkpoint(true);
     }
 
     public List<ShortcutService.FrequentContact> getFrequentContacts(int days) {
+        flushPendingMessages();
         SQLiteDatabase db = this.getReadableDatabase();
         final String SQL = "select " + Conversation.TABLENAME + "." + Conversation.ACCOUNT + "," + Conversation.TABLENAME + "." + Conversation.CONTACTJID + " from " + Conversation.TABLENAME + " join " + Message.TABLENAME + " on conversations.uuid=messages.conversationUuid where messages.status!=0 and carbon==0  and conversations.mode=0 and messages.timeSent>=? group by conversations.uuid order by count(body) desc limit 4;";
         String[] whereArgs = new String[]{String.valueOf(System.currentTimeMillis() - (Config.MILLISECONDS_IN_DAY * days))};
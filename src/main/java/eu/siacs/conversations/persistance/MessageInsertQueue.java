@@ -0,0 +1,148 @@
+package eu.siacs.conversations.persistance;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import eu.siacs.conversations.Config;
+import eu.siacs.conversations.entities.Message;
+
+/**
+ * Group commit for incoming messages. Messages are collected and inserted in one transaction per
+ * batch, once the batch is full or a few milliseconds after the first message was queued. Callers
+ * that need to observe the rows (readers, updates, end of a MAM query) call {@link #flush()},
+ * which returns true only after everything queued before the call has been committed. A batch
+ * that fails to commit stays queued and is retried; it is never reported as persisted.
+ * <p>
+ * Lock order: the flush lock is taken before the SQLite transaction. Callers must therefore never
+ * call {@link #flush()} while they are inside a transaction of their own, and the flush must not
+ * run on the UI thread, since it may wait for another thread that holds the database.
+ */
+public class MessageInsertQueue {
+
+    private static final int MAX_BATCH_SIZE = 256;
+    private static final long MAX_DELAY = 5;
+    private static final long RETRY_DELAY = 1000;
+
+    private final DatabaseBackend databaseBackend;
+    private final Object flushLock = new Object();
+    private ArrayList<Message> pending = new ArrayList<>();
+    private ScheduledExecutorService executor = null;
+
+    private final AtomicLong batches = new AtomicLong(0);
+    private final AtomicLong persisted = new AtomicLong(0);
+    private final AtomicLong commitMillis = new AtomicLong(0);
+    private volatile int maxBatchSize = 0;
+
+    MessageInsertQueue(final DatabaseBackend databaseBackend) {
+        this.databaseBackend = databaseBackend;
+    }
+
+    public void add(final Message message) {
+        final int size;
+        synchronized (this) {
+            pending.add(message);
+            size = pending.size();
+        }
+        if (size >= MAX_BATCH_SIZE) {
+            getExecutor().execute(this::flush);
+        } else if (size == 1) {
+            getExecutor().schedule(this::flush, MAX_DELAY, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private synchronized ScheduledExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                final Thread thread = new Thread(runnable, "MessageInsertQueue");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return executor;
+    }
+
+    /**
+     * Schedules a flush on the queue's own thread without waiting for it.
+     */
+    public void flushAsync() {
+        getExecutor().execute(this::flush);
+    }
+
+    /**
+     * @return true if every message queued before the call has been committed, false if the batch
+     * failed and is waiting to be retried
+     */
+    public boolean flush() {
+        synchronized (flushLock) {
+            final ArrayList<Message> batch;
+            synchronized (this) {
+                if (pending.isEmpty()) {
+                    return true;
+                }
+                batch = pending;
+                pending = new ArrayList<>();
+            }
+            final long start = SystemClock.elapsedRealtime();
+            final SQLiteDatabase db = databaseBackend.getWritableDatabase();
+            try {
+                db.beginTransaction();
+                try {
+                    for (Message message : batch) {
+                        db.insert(Message.TABLENAME, null, message.getContentValues());
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            } catch (RuntimeException e) {
+                Log.e(Config.LOGTAG, "unable to persist batch of " + batch.size() + " messages. retrying in " + RETRY_DELAY + "ms", e);
+                synchronized (this) {
+                    batch.addAll(pending);
+                    pending = batch;
+                }
+                getExecutor().schedule(this::flush, RETRY_DELAY, TimeUnit.MILLISECONDS);
+                return false;
+            }
+            batches.incrementAndGet();
+            persisted.addAndGet(batch.size());
+            commitMillis.addAndGet(SystemClock.elapsedRealtime() - start);
+            if (batch.size() > maxBatchSize) {
+                maxBatchSize = batch.size();
+            }
+        }
+        //index outside of the flush lock so readers and stream management acks never wait for it
+        getExecutor().execute(() -> databaseBackend.getSearchIndex().updateBatch());
+        return true;
+    }
+
+    public long getBatches() {
+        return batches.get();
+    }
+
+    public long getPersisted() {
+        return persisted.get();
+    }
+
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    public long getMessagesPerSecond() {
+        return persisted.get() * 1000 / Math.max(1, commitMillis.get());
+    }
+
+    @Override
+    public String toString() {
+        return "persisted=" + getPersisted()
+                + ", batches=" + getBatches()
+                + ", max batch size=" + getMaxBatchSize()
+                + ", " + getMessagesPerSecond() + " messages/s";
+    }
+}
@@ -0,0 +1,133 @@
+package eu.siacs.conversations.persistance;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+import eu.siacs.conversations.Config;
+import eu.siacs.conversations.entities.Message;
+
+/**
+ * Full text index over the message bodies. The FTS table uses the rowid of the message as its
+ * docid, so lookups, updates and deletes never have to scan the index. New messages are not
+ * indexed by a trigger; instead everything with a rowid above the highest indexed docid is
+ * copied over in batches, after a group commit and before a search. Deletes and body changes
+ * are still applied by (cheap) triggers to keep the highest docid a valid watermark.
+ * <p>
+ * Only one update runs at a time. Updates on hot paths use {@link #updateBatch()}, which skips
+ * instead of waiting when another update is running; the skipped messages are picked up by the
+ * next update.
+ */
+public class MessageSearchIndex {
+
+    public static final String TABLENAME = "messages_search";
+
+    public static final String SNIPPET = "snippet";
+
+    private static final int BATCH_SIZE = 1000;
+    private static final int SNIPPET_TOKENS = 32;
+
+    private static final String CREATE_TABLE = "CREATE VIRTUAL TABLE " + TABLENAME + " USING FTS4(" + Message.BODY + ", prefix=\"2,3\")";
+    private static final String CREATE_DELETE_TRIGGER = "CREATE TRIGGER after_message_delete_search AFTER DELETE ON " + Message.TABLENAME + " BEGIN "
+            + "DELETE FROM " + TABLENAME + " WHERE docid=old.rowid; END;";
+    private static final String CREATE_UPDATE_TRIGGER = "CREATE TRIGGER after_message_update_search AFTER UPDATE OF " + Message.BODY + " ON " + Message.TABLENAME + " WHEN old.body IS NOT new.body BEGIN "
+            + "UPDATE " + TABLENAME + " SET body=new.body WHERE docid=old.rowid; END;";
+
+    private final DatabaseBackend databaseBackend;
+    private final ReentrantLock lock = new ReentrantLock();
+
+    MessageSearchIndex(final DatabaseBackend databaseBackend) {
+        this.databaseBackend = databaseBackend;
+    }
+
+    static void create(final SQLiteDatabase db) {
+        db.execSQL(CREATE_TABLE);
+        db.execSQL(CREATE_DELETE_TRIGGER);
+        db.execSQL(CREATE_UPDATE_TRIGGER);
+    }
+
+    /**
+     * @return a result column, named {@link #SNIPPET}, with an excerpt of about {@link
+     * #SNIPPET_TOKENS} words around the matched terms; short bodies are returned in full
+     */
+    static String snippet() {
+        return "snippet(" + TABLENAME + ",'','','\u2026',-1," + SNIPPET_TOKENS + ") AS " + SNIPPET;
+    }
+
+    /**
+     * Indexes at most {@code max} messages that have been inserted since the last update, after
+     * waiting for an update that is already running.
+     *
+     * @return the number of messages that have been added to the index
+     */
+    public int update(final int max) {
+        lock.lock();
+        try {
+            return index(max);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Like {@link #update(int)}, but indexes nothing if another update is running.
+     */
+    public int tryUpdate(final int max) {
+        if (!lock.tryLock()) {
+            return 0;
+        }
+        try {
+            return index(max);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int index(final int max) {
+        final long start = SystemClock.elapsedRealtime();
+        final SQLiteDatabase db = databaseBackend.getWritableDatabase();
+        int total = 0;
+        int indexed;
+        do {
+            final int limit = Math.min(BATCH_SIZE, max - total);
+            db.beginTransaction();
+            try {
+                final SQLiteStatement statement = db.compileStatement("INSERT INTO " + TABLENAME + "(docid," + Message.BODY + ") SELECT rowid," + Message.BODY
+                        + " FROM " + Message.TABLENAME + " WHERE rowid>? ORDER BY rowid LIMIT " + limit);
+                statement.bindLong(1, getLastIndexed(db));
+                indexed = statement.executeUpdateDelete();
+                statement.close();
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            total += indexed;
+        } while (indexed == limit && total < max);
+        if (total >= BATCH_SIZE) {
+            Log.d(Config.LOGTAG, "indexed " + total + " messages in " + (SystemClock.elapsedRealtime() - start) + "ms");
+        }
+        return total;
+    }
+
+    public int update() {
+        return update(Integer.MAX_VALUE);
+    }
+
+    public int updateBatch() {
+        return tryUpdate(BATCH_SIZE);
+    }
+
+    private static long getLastIndexed(final SQLiteDatabase db) {
+        //ORDER BY docid is served by the FTS table itself; max(docid) would scan it
+        final Cursor cursor = db.rawQuery("SELECT docid FROM " + TABLENAME + " ORDER BY docid DESC LIMIT 1", null);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package eu.siacs.conversations.services;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import eu.siacs.conversations.entities.Account;
+import eu.siacs.conversations.entities.Conversation;
+import rocks.xmpp.addr.Jid;
+
+/**
+ * Lookup tables for the open conversations, keyed by uuid and by account and bare jid. Writes
+ * happen while holding the lock on the conversation list; reads do not take any lock. The bare
+ * jid of a conversation does not change while it is open (joining a MUC under a different nick
+ * only changes the resource), so the jid a conversation was added with remains its key.
+ */
+class ConversationIndex {
+
+	private final ConcurrentHashMap<String, Conversation> byUuid = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, ConcurrentHashMap<Jid, Conversation>> byAccount = new ConcurrentHashMap<>();
+
+	void add(final Conversation conversation) {
+		final Account account = conversation.getAccount();
+		byUuid.put(conversation.getUuid(), conversation);
+		ConcurrentHashMap<Jid, Conversation> byJid = byAccount.get(account.getUuid());
+		if (byJid == null) {
+			byJid = new ConcurrentHashMap<>();
+			final ConcurrentHashMap<Jid, Conversation> existing = byAccount.putIfAbsent(account.getUuid(), byJid);
+			if (existing != null) {
+				byJid = existing;
+			}
+		}
+		byJid.putIfAbsent(conversation.getJid().asBareJid(), conversation);
+	}
+
+	void remove(final Conversation conversation) {
+		byUuid.remove(conversation.getUuid(), conversation);
+		final ConcurrentHashMap<Jid, Conversation> byJid = byAccount.get(conversation.getAccount().getUuid());
+		if (byJid != null) {
+			byJid.remove(conversation.getJid().asBareJid(), conversation);
+		}
+	}
+
+	Conversation find(final Account account, final Jid jid) {
+		final ConcurrentHashMap<Jid, Conversation> byJid = byAccount.get(account.getUuid());
+		return byJid == null ? null : byJid.get(jid.asBareJid());
+	}
+
+	Conversation findByUuid(final String uuid) {
+		return uuid == null ? null : byUuid.get(uuid);
+	}
+
+	boolean contains(final Conversation conversation) {
+		return byUuid.get(conversation.getUuid()) == conversation;
+	}
+}
@@ -11,27 +11,22 @@ import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 import android.os.IBinder;
+import android.os.SystemClock;
 import android.support.v4.app.NotificationCompat;
 import android.util.Log;
 
-import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.PrintWriter;
+import java.io.IOException;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.security.spec.InvalidKeySpecException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.zip.GZIPOutputStream;
 
-import javax.crypto.Cipher;
-import javax.crypto.CipherOutputStream;
 import javax.crypto.SecretKeyFactory;
-import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.PBEKeySpec;
-import javax.crypto.spec.SecretKeySpec;
 
 import eu.siacs.conversations.Config;
 import eu.siacs.conversations.R;
@@ -42,6 +37,7 @@ import eu.siacs.conversations.entities.Message;
 import eu.siacs.conversations.persistance.DatabaseBackend;
 import eu.siacs.conversations.persistance.FileBackend;
 import eu.siacs.conversations.utils.BackupFileHeader;
+import eu.siacs.conversations.utils.BackupFileWriter;
 import eu.siacs.conversations.utils.Compatibility;
 
 public class ExportBackupService extends Service {
@@ -51,7 +47,8 @@ public class ExportBackupService extends Service {
     public static final String PROVIDER = "BC";
 
     private static final int NOTIFICATION_ID = 19;
-    private static final int PAGE_SIZE = 20;
+    private static final int PROGRESS_INTERVAL = 500;
+    private static final long PROGRESS_UPDATE_INTERVAL = 1000;
     private static AtomicBoolean running = new AtomicBoolean(false);
     private DatabaseBackend mDatabaseBackend;
     private List<Account> mAccounts;
@@ -83,51 +80,32 @@ public class ExportBackupService extends Service {
 
     }
 
-    private static void accountExport(SQLiteDatabase db, String uuid, PrintWriter writer) {
-        final StringBuilder builder = new StringBuilder();
+    private static void accountExport(SQLiteDatabase db, String uuid, BackupFileWriter writer) throws IOException {
         final Cursor accountCursor = db.query(Account.TABLENAME, null, Account.UUID + "=?", new String[]{uuid}, null, null, null);
-        while (accountCursor != null && accountCursor.moveToNext()) {
-            builder.append("INSERT INTO ").append(Account.TABLENAME).append("(");
-            for (int i = 0; i < accountCursor.getColumnCount(); ++i) {
-                if (i != 0) {
-                    builder.append(',');
-                }
-                builder.append(accountCursor.getColumnName(i));
-            }
-            builder.append(") VALUES(");
-            for (int i = 0; i < accountCursor.getColumnCount(); ++i) {
-                if (i != 0) {
-                    builder.append(',');
-                }
-                final String value = accountCursor.getString(i);
-                if (value == null || Account.ROSTERVERSION.equals(accountCursor.getColumnName(i))) {
-                    builder.append("NULL");
-                } else if (value.matches("\\d+")) {
-                    int intValue = Integer.parseInt(value);
-                    if (Account.OPTIONS.equals(accountCursor.getColumnName(i))) {
-                        intValue |= 1 << Account.OPTION_DISABLED;
+        try {
+            final String[] columns = accountCursor.getColumnNames();
+            writer.beginTable(Account.TABLENAME, columns);
+            while (accountCursor.moveToNext()) {
+                final Object[] values = readValues(accountCursor, -1);
+                for (int i = 0; i < columns.length; ++i) {
+                    if (Account.ROSTERVERSION.equals(columns[i])) {
+                        values[i] = null;
+                    } else if (Account.OPTIONS.equals(columns[i]) && values[i] instanceof Long) {
+                        values[i] = (Long) values[i] | 1 << Account.OPTION_DISABLED;
                     }
-                    builder.append(intValue);
-                } else {
-                    DatabaseUtils.appendEscapedSQLString(builder, value);
                 }
+                writer.writeRow(values);
             }
-            builder.append(")");
-            builder.append(';');
-            builder.append('\n');
-        }
-        if (accountCursor != null) {
+        } finally {
             accountCursor.close();
         }
-        writer.append(builder.toString());
     }
 
-    private static void simpleExport(SQLiteDatabase db, String table, String column, String uuid, PrintWriter writer) {
+    private static void simpleExport(SQLiteDatabase db, String table, String column, String uuid, BackupFileWriter writer) throws IOException {
         final Cursor cursor = db.query(table, null, column + "=?", new String[]{uuid}, null, null, null);
-        while (cursor != null && cursor.moveToNext()) {
-            writer.write(cursorToString(table, cursor, PAGE_SIZE));
-        }
-        if (cursor != null) {
+        try {
+            tableExport(table, cursor, writer, null, 0);
+        } finally {
             cursor.close();
         }
     }
@@ -141,18 +119,9 @@ public class ExportBackupService extends Service {
         }
     }
 
-    private static String cursorToString(String tablename, Cursor cursor, int max) {
-        return cursorToString(tablename, cursor, max, false);
-    }
-
-    private static String cursorToString(final String tablename, final Cursor cursor, int max, boolean ignore) {
-        final boolean identities = SQLiteAxolotlStore.IDENTITIES_TABLENAME.equals(tablename);
-        StringBuilder builder = new StringBuilder();
-        builder.append("INSERT ");
-        if (ignore) {
-            builder.append("OR IGNORE ");
-        }
-        builder.append("INTO ").append(tablename).append("(");
+    private static void tableExport(final String table, final Cursor cursor, final BackupFileWriter writer, final Progress progress, final long total) throws IOException {
+        final boolean identities = SQLiteAxolotlStore.IDENTITIES_TABLENAME.equals(table);
+        final ArrayList<String> columns = new ArrayList<>();
         int skipColumn = -1;
         for (int i = 0; i < cursor.getColumnCount(); ++i) {
             final String name = cursor.getColumnName(i);
@@ -160,46 +129,47 @@ public class ExportBackupService extends Service {
                 skipColumn = i;
                 continue;
             }
-            if (i != 0) {
-                builder.append(',');
-            }
-            builder.append(name);
+            columns.add(name);
         }
-        builder.append(") VALUES");
-        for (int i = 0; i < max; ++i) {
-            if (i != 0) {
-                builder.append(',');
-            }
-            appendValues(cursor, builder, skipColumn);
-            if (i < max - 1 && !cursor.moveToNext()) {
-                break;
+        writer.beginTable(table, columns.toArray(new String[0]));
+        long i = 0;
+        while (cursor.moveToNext()) {
+            writer.writeRow(readValues(cursor, skipColumn));
+            if (progress != null && ++i % PROGRESS_INTERVAL == 0) {
+                progress.update(i, total);
             }
         }
-        builder.append(';');
-        builder.append('\n');
-        return builder.toString();
+        if (progress != null) {
+            progress.update(i, total);
+        }
     }
 
-    private static void appendValues(final Cursor cursor, final StringBuilder builder, final int skipColumn) {
-        builder.append("(");
+    private static Object[] readValues(final Cursor cursor, final int skipColumn) {
+        final Object[] values = new Object[skipColumn < 0 ? cursor.getColumnCount() : cursor.getColumnCount() - 1];
+        int v = 0;
         for (int i = 0; i < cursor.getColumnCount(); ++i) {
             if (i == skipColumn) {
                 continue;
             }
-            if (i != 0) {
-                builder.append(',');
-            }
-            final String value = cursor.getString(i);
-            if (value == null) {
-                builder.append("NULL");
-            } else if (value.matches("[0-9]+")) {
-                builder.append(value);
-            } else {
-                DatabaseUtils.appendEscapedSQLString(builder, value);
+            switch (cursor.getType(i)) {
+                case Cursor.FIELD_TYPE_INTEGER:
+                    values[v++] = cursor.getLong(i);
+                    break;
+                case Cursor.FIELD_TYPE_FLOAT:
+                    values[v++] = cursor.getDouble(i);
+                    break;
+                case Cursor.FIELD_TYPE_STRING:
+                    values[v++] = cursor.getString(i);
+                    break;
+                case Cursor.FIELD_TYPE_BLOB:
+                    values[v++] = cursor.getBlob(i);
+                    break;
+                default:
+                    values[v++] = null;
+                    break;
             }
         }
-        builder.append(")");
-
+        return values;
     }
 
     @Override
@@ -226,26 +196,14 @@ public class ExportBackupService extends Service {
         return START_NOT_STICKY;
     }
 
-    private void messageExport(SQLiteDatabase db, String uuid, PrintWriter writer, Progress progress) {
-        Cursor cursor = db.rawQuery("select messages.* from messages join conversations on conversations.uuid=messages.conversationUuid where conversations.accountUuid=?", new String[]{uuid});
-        int size = cursor != null ? cursor.getCount() : 0;
+    private void messageExport(SQLiteDatabase db, String uuid, BackupFileWriter writer, Progress progress) throws IOException {
+        final String[] selectionArgs = new String[]{uuid};
+        final long size = DatabaseUtils.longForQuery(db, "select count(messages.uuid) from messages join conversations on conversations.uuid=messages.conversationUuid where conversations.accountUuid=?", selectionArgs);
         Log.d(Config.LOGTAG, "exporting " + size + " messages");
-        int i = 0;
-        int p = 0;
-        while (cursor != null && cursor.moveToNext()) {
-            writer.write(cursorToString(Message.TABLENAME, cursor, PAGE_SIZE, false));
-            if (i + PAGE_SIZE > size) {
-                i = size;
-            } else {
-                i += PAGE_SIZE;
-            }
-            final int percentage = i * 100 / size;
-            if (p < percentage) {
-                p = percentage;
-                notificationManager.notify(NOTIFICATION_ID, progress.build(p));
-            }
-        }
-        if (cursor != null) {
+        final Cursor cursor = db.rawQuery("select messages.* from messages join conversations on conversations.uuid=messages.conversationUuid where conversations.accountUuid=?", selectionArgs);
+        try {
+            tableExport(Message.TABLENAME, cursor, writer, progress, size);
+        } finally {
             cursor.close();
         }
     }
@@ -266,37 +224,31 @@ public class ExportBackupService extends Service {
                 secureRandom.nextBytes(IV);
                 secureRandom.nextBytes(salt);
                 final BackupFileHeader backupFileHeader = new BackupFileHeader(getString(R.string.app_name), account.getJid(), System.currentTimeMillis(), IV, salt);
-                final Progress progress = new Progress(mBuilder, max, count);
                 final File file = new File(FileBackend.getBackupDirectory(this) + account.getJid().asBareJid().toEscapedString() + ".ceb");
                 if (file.getParentFile().mkdirs()) {
                     Log.d(Config.LOGTAG, "created backup directory " + file.getParentFile().getAbsolutePath());
                 }
-                final FileOutputStream fileOutputStream = new FileOutputStream(file);
-                final DataOutputStream dataOutputStream = new DataOutputStream(fileOutputStream);
-                backupFileHeader.write(dataOutputStream);
-                dataOutputStream.flush();
-
-                final Cipher cipher = Compatibility.twentyEight() ? Cipher.getInstance(CIPHERMODE) : Cipher.getInstance(CIPHERMODE, PROVIDER);
-                byte[] key = getKey(account.getPassword(), salt);
                 Log.d(Config.LOGTAG, backupFileHeader.toString());
-                SecretKeySpec keySpec = new SecretKeySpec(key, KEYTYPE);
-                IvParameterSpec ivSpec = new IvParameterSpec(IV);
-                cipher.init(Cipher.ENCRYPT_MODE, keySpec, ivSpec);
-                CipherOutputStream cipherOutputStream = new CipherOutputStream(fileOutputStream, cipher);
-
-                GZIPOutputStream gzipOutputStream = new GZIPOutputStream(cipherOutputStream);
-                PrintWriter writer = new PrintWriter(gzipOutputStream);
-                SQLiteDatabase db = this.mDatabaseBackend.getReadableDatabase();
-                final String uuid = account.getUuid();
-                accountExport(db, uuid, writer);
-                simpleExport(db, Conversation.TABLENAME, Conversation.ACCOUNT, uuid, writer);
-                messageExport(db, uuid, writer, progress);
-                for (String table : Arrays.asList(SQLiteAxolotlStore.PREKEY_TABLENAME, SQLiteAxolotlStore.SIGNED_PREKEY_TABLENAME, SQLiteAxolotlStore.SESSION_TABLENAME, SQLiteAxolotlStore.IDENTITIES_TABLENAME)) {
-                    simpleExport(db, table, SQLiteAxolotlStore.ACCOUNT, uuid, writer);
+                final BackupFileWriter writer = new BackupFileWriter(file, backupFileHeader, getKey(account.getPassword(), salt));
+                final Progress progress = new Progress(mBuilder, max, count, writer);
+                try {
+                    SQLiteDatabase db = this.mDatabaseBackend.getReadableDatabase();
+                    final String uuid = account.getUuid();
+                    accountExport(db, uuid, writer);
+                    simpleExport(db, Conversation.TABLENAME, Conversation.ACCOUNT, uuid, writer);
+                    messageExport(db, uuid, writer, progress);
+                    for (String table : Arrays.asList(SQLiteAxolotlStore.PREKEY_TABLENAME, SQLiteAxolotlStore.SIGNED_PREKEY_TABLENAME, SQLiteAxolotlStore.SESSION_TABLENAME, SQLiteAxolotlStore.IDENTITIES_TABLENAME)) {
+                        simpleExport(db, table, SQLiteAxolotlStore.ACCOUNT, uuid, writer);
+                    }
+                    writer.close();
+                } catch (IOException | RuntimeException e) {
+                    writer.abort();
+                    if (file.delete()) {
+                        Log.d(Config.LOGTAG, "deleted incomplete backup " + file.getAbsolutePath());
+                    }
+                    throw e;
                 }
-                writer.flush();
-                writer.close();
-                Log.d(Config.LOGTAG, "written backup to " + file.getAbsoluteFile());
+                Log.d(Config.LOGTAG, "written backup to " + file.getAbsoluteFile() + " (" + progress + ")");
                 count++;
             }
             return true;
@@ -337,16 +289,45 @@ public class ExportBackupService extends Service {
         private final NotificationCompat.Builder builder;
         private final int max;
         private final int count;
+        private final BackupFileWriter writer;
+        private final long start = SystemClock.elapsedRealtime();
+        private int percentage = -1;
+        private long lastUpdate = 0;
 
-        private Progress(NotificationCompat.Builder builder, int max, int count) {
+        private Progress(NotificationCompat.Builder builder, int max, int count, BackupFileWriter writer) {
             this.builder = builder;
             this.max = max;
             this.count = count;
+            this.writer = writer;
+        }
+
+        private void update(long done, long total) {
+            final int percentage = total <= 0 ? 100 : (int) (done * 100 / total);
+            final long now = SystemClock.elapsedRealtime();
+            if (percentage > this.percentage || now - lastUpdate >= PROGRESS_UPDATE_INTERVAL) {
+                this.percentage = percentage;
+                this.lastUpdate = now;
+                notificationManager.notify(NOTIFICATION_ID, build(percentage));
+            }
+        }
+
+        private long getRowsPerSecond() {
+            return writer.getRows() * 1000 / Math.max(1, SystemClock.elapsedRealtime() - start);
+        }
+
+        private double getMegabytesPerSecond() {
+            return writer.getBytesWritten() * 1000.0 / Math.max(1, SystemClock.elapsedRealtime() - start) / (1024 * 1024);
         }
 
         private Notification build(int percentage) {
             builder.setProgress(max * 100, count * 100 + percentage, false);
+            builder.setContentText(getString(R.string.notification_backup_throughput, getRowsPerSecond(), getMegabytesPerSecond()));
             return builder.build();
         }
+
+        @Override
+        public String toString() {
+            return writer.getRows() + " rows, " + writer.getBytesWritten() + " bytes, " + getRowsPerSecond() + " rows/s";
+        }
     }
 }
@@ -245,7 +245,7 @@ public class MessageArchiveService implements OnAdvancedStreamFeaturesLoaded {
 					Log.d(Config.LOGTAG, a.getJid().asBareJid().toString() + ": error executing mam: " + p.toString());
 					finalizeQuery(query, true);
 				}
-			});
+			}, Config.MAM_IQ_TIMEOUT);
 		} else {
 			synchronized (this.pendingQueries) {
 				this.pendingQueries.add(query);
@@ -257,6 +257,10 @@ public class MessageArchiveService implements OnAdvancedStreamFeaturesLoaded {
 		synchronized (this.queries) {
 			this.queries.remove(query);
 		}
+		this.mXmppConnectionService.databaseBackend.flushPendingMessages();
+		if (query.isCatchup()) {
+			Log.d(Config.LOGTAG, query.getAccount().getJid().asBareJid() + ": finished catchup query. message insert queue: " + this.mXmppConnectionService.databaseBackend.getMessageInsertQueue());
+		}
 		final Conversation conversation = query.getConversation();
 		if (conversation != null) {
 			conversation.sort();
@@ -35,6 +35,7 @@ import android.util.Log;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 
@@ -45,6 +46,7 @@ import eu.siacs.conversations.entities.Conversational;
 import eu.siacs.conversations.entities.IndividualMessage;
 import eu.siacs.conversations.entities.Message;
 import eu.siacs.conversations.entities.StubConversation;
+import eu.siacs.conversations.persistance.MessageSearchIndex;
 import eu.siacs.conversations.ui.interfaces.OnSearchResultsAvailable;
 import eu.siacs.conversations.utils.Cancellable;
 import eu.siacs.conversations.utils.MessageUtils;
@@ -53,6 +55,8 @@ import rocks.xmpp.addr.Jid;
 
 public class MessageSearchTask implements Runnable, Cancellable {
 
+	private static final int PAGE_SIZE = 50;
+
 	private static final ReplacingSerialSingleThreadExecutor EXECUTOR = new ReplacingSerialSingleThreadExecutor(MessageSearchTask.class.getName());
 
 	private final XmppConnectionService xmppConnectionService;
@@ -60,6 +64,7 @@ public class MessageSearchTask implements Runnable, Cancellable {
 	private final OnSearchResultsAvailable onSearchResultsAvailable;
 
 	private boolean isCancelled = false;
+	private int published = 0;
 
 	private MessageSearchTask(XmppConnectionService xmppConnectionService, List<String> term, OnSearchResultsAvailable onSearchResultsAvailable) {
 		this.xmppConnectionService = xmppConnectionService;
@@ -93,14 +98,17 @@ public class MessageSearchTask implements Runnable, Cancellable {
 				Log.d(Config.LOGTAG, "canceled search task");
 				return;
 			}
-			if (cursor != null && cursor.getCount() > 0) {
-				cursor.moveToLast();
+			//rows come in newest first and are handed out page by page; reading them does not
+			//require counting all of them first
+			if (cursor != null && cursor.moveToFirst()) {
 				final int indexBody = cursor.getColumnIndex(Message.BODY);
+				final int indexSnippet = cursor.getColumnIndex(MessageSearchIndex.SNIPPET);
 				final int indexOob = cursor.getColumnIndex(Message.OOB);
 				final int indexConversation = cursor.getColumnIndex(Message.CONVERSATION);
 				final int indexAccount = cursor.getColumnIndex(Conversation.ACCOUNT);
 				final int indexContact = cursor.getColumnIndex(Conversation.CONTACTJID);
 				final int indexMode = cursor.getColumnIndex(Conversation.MODE);
+				final Message.Columns columns = new Message.Columns(cursor);
 				do {
 					if (isCancelled) {
 						Log.d(Config.LOGTAG, "canceled search task");
@@ -120,13 +128,20 @@ public class MessageSearchTask implements Runnable, Cancellable {
 						conversation = findOrGenerateStub(conversationUuid, accountUuid, contactJid, mode);
 						conversationCache.put(conversationUuid, conversation);
 					}
-					Message message = IndividualMessage.fromCursor(cursor, conversation);
+					Message message = IndividualMessage.fromCursor(cursor, columns, conversation);
+					final String snippet = cursor.getString(indexSnippet);
+					if (snippet != null && !snippet.isEmpty()) {
+						message.setBody(snippet);
+					}
 					result.add(message);
-				} while (cursor.moveToPrevious());
+					if (result.size() % PAGE_SIZE == 0) {
+						publish(result);
+					}
+				} while (cursor.moveToNext());
 			}
 			long stopTimestamp = SystemClock.elapsedRealtime();
 			Log.d(Config.LOGTAG, "found " + result.size() + " messages in " + (stopTimestamp - startTimestamp) + "ms"+ " (db was "+(dbTimer - startTimestamp)+"ms)");
-			onSearchResultsAvailable.onSearchResultsAvailable(term, result);
+			publish(result);
 		} catch (Exception e) {
 			Log.d(Config.LOGTAG, "exception while searching ", e);
 		} finally {
@@ -136,6 +151,21 @@ public class MessageSearchTask implements Runnable, Cancellable {
 		}
 	}
 
+	/**
+	 * Hands the rows found since the last call to the UI, in chronological order. The first page
+	 * replaces the previous results; later pages are older and are prepended.
+	 */
+	private void publish(final List<Message> newestFirst) {
+		final List<Message> page = new ArrayList<>(newestFirst.subList(published, newestFirst.size()));
+		Collections.reverse(page);
+		if (published == 0) {
+			onSearchResultsAvailable.onSearchResultsAvailable(term, page);
+		} else if (page.size() > 0) {
+			onSearchResultsAvailable.onMoreSearchResultsAvailable(term, page);
+		}
+		published = newestFirst.size();
+	}
+
 	private Conversational findOrGenerateStub(String conversationUuid, String accountUuid, String contactJid, int mode) throws Exception {
 		Conversation conversation = xmppConnectionService.findConversationByUuid(conversationUuid);
 		if (conversation != null) {
@@ -66,10 +66,13 @@ import java.util.ListIterator;
 import java.util.Map;
 import java.util.Set;
 import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
@@ -127,6 +130,7 @@ import eu.siacs.conversations.utils.ReplacingSerialSingleThreadExecutor;
 import eu.siacs.conversations.utils.ReplacingTaskManager;
 import eu.siacs.conversations.utils.Resolver;
 import eu.siacs.conversations.utils.SerialSingleThreadExecutor;
+import eu.siacs.conversations.utils.TraceSpan;
 import eu.siacs.conversations.utils.StringUtils;
 import eu.siacs.conversations.utils.WakeLockHelper;
 import eu.siacs.conversations.xml.Namespace;
@@ -176,6 +180,7 @@ public class XmppConnectionService extends Service {
     private static final String ACTION_POST_CONNECTIVITY_CHANGE = "eu.siacs.conversations.POST_CONNECTIVITY_CHANGE";
 
     private static final String SETTING_LAST_ACTIVITY_TS = "last_activity_timestamp";
+    private static final int MAX_RESTORE_THREADS = 4;
 
     static {
         URL.setURLStreamHandlerFactory(new CustomURLStreamHandlerFactory());
@@ -190,6 +195,7 @@ public class XmppConnectionService extends Service {
     private final ReplacingTaskManager mRosterSyncTaskManager = new ReplacingTaskManager();
     private final IBinder mBinder = new XmppConnectionBinder();
     private final List<Conversation> conversations = new CopyOnWriteArrayList<>();
+    private final ConversationIndex conversationIndex = new ConversationIndex();
     private final IqGenerator mIqGenerator = new IqGenerator(this);
     private final Set<String> mInProgressAvatarFetches = new HashSet<>();
     private final Set<String> mOmittedPepAvatarFetches = new HashSet<>();
@@ -565,7 +571,10 @@ public class XmppConnectionService extends Service {
     }
 
     public Conversation find(final Account account, final Jid jid) {
-        return find(getConversations(), account, jid);
+        if (account == null) {
+            return find(getConversations(), null, jid);
+        }
+        return jid == null ? null : conversationIndex.find(account, jid);
     }
 
     public boolean isMuc(final Account account, final Jid jid) {
@@ -695,6 +704,7 @@ public class XmppConnectionService extends Service {
                     if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
                         scheduleNextIdlePing();
                     }
+                    checkpointDatabase();
                     break;
                 case ACTION_FCM_MESSAGE_RECEIVED:
                     pushedAccountHash = intent.getStringExtra("account");
@@ -969,21 +979,40 @@ public class XmppConnectionService extends Service {
         mDatabaseWriterExecutor.execute(() -> {
             long timestamp = getAutomaticMessageDeletionDate();
             if (timestamp > 0) {
-                databaseBackend.expireOldMessages(timestamp);
-                synchronized (XmppConnectionService.this.conversations) {
-                    for (Conversation conversation : XmppConnectionService.this.conversations) {
-                        conversation.expireOldMessages(timestamp);
-                        if (resetHasMessagesLeftOnServer) {
-                            conversation.messagesLoaded.set(true);
-                            conversation.setHasMessagesLeftOnServer(true);
-                        }
-                    }
-                }
-                updateConversationUi();
+                expireOldMessages(timestamp, resetHasMessagesLeftOnServer, 0, SystemClock.elapsedRealtime());
             }
         });
     }
 
+    /**
+     * Deletes one chunk of old messages and queues the next chunk as a new task on the writer
+     * executor, behind whatever other writes have been submitted in the meantime.
+     */
+    private void expireOldMessages(final long timestamp, final boolean resetHasMessagesLeftOnServer, final int expired, final long start) {
+        final TraceSpan chunk = TraceSpan.begin("expire old messages");
+        final int deleted = databaseBackend.expireOldMessages(timestamp);
+        chunk.end();
+        final int total = expired + deleted;
+        if (deleted == DatabaseBackend.EXPIRY_CHUNK_SIZE) {
+            mDatabaseWriterExecutor.execute(() -> expireOldMessages(timestamp, resetHasMessagesLeftOnServer, total, start));
+            return;
+        }
+        if (total > 0) {
+            databaseBackend.checkpoint(true);
+        }
+        Log.d(Config.LOGTAG, "expired " + total + " messages in " + (SystemClock.elapsedRealtime() - start) + "ms");
+        synchronized (this.conversations) {
+            for (Conversation conversation : this.conversations) {
+                conversation.expireOldMessages(timestamp);
+                if (resetHasMessagesLeftOnServer) {
+                    conversation.messagesLoaded.set(true);
+                    conversation.setHasMessagesLeftOnServer(true);
+                }
+            }
+        }
+        updateConversationUi();
+    }
+
     public boolean hasInternetConnection() {
         final ConnectivityManager cm = (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
         try {
@@ -1134,6 +1163,39 @@ public class XmppConnectionService extends Service {
             Log.d(Config.LOGTAG, "clear cache due to low memory");
             getBitmapCache().evictAll();
         }
+        if (level >= TRIM_MEMORY_BACKGROUND || level == TRIM_MEMORY_RUNNING_LOW || level == TRIM_MEMORY_RUNNING_CRITICAL) {
+            final int hot = level >= TRIM_MEMORY_COMPLETE || level == TRIM_MEMORY_RUNNING_CRITICAL ? 0 : Config.MAX_HOT_CONVERSATIONS;
+            //runs on the reader executor so it can not interleave with paging messages back in
+            mDatabaseReaderExecutor.execute(() -> evictMessages(hot));
+        }
+    }
+
+    /**
+     * Shrinks the in-memory messages of every conversation but the most recently opened ones down
+     * to a single page. Conversations that are open or that are waiting for MAM are left alone.
+     */
+    private void evictMessages(final int hot) {
+        final Conversation open = mNotificationService.getOpenConversation();
+        final ArrayList<Conversation> candidates = new ArrayList<>(getConversations());
+        Collections.sort(candidates, (a, b) -> {
+            final long diff = b.getLastAccessed() - a.getLastAccessed();
+            return diff > 0 ? 1 : (diff < 0 ? -1 : 0);
+        });
+        long before = 0;
+        long after = 0;
+        int evicted = 0;
+        for (int i = 0; i < candidates.size(); ++i) {
+            final Conversation conversation = candidates.get(i);
+            final long size = conversation.getEstimatedHeapSize();
+            before += size;
+            if (i < hot || conversation == open || mMessageArchiveService.queryInProgress(conversation)) {
+                after += size;
+                continue;
+            }
+            evicted += conversation.evictMessages(Config.PAGE_SIZE);
+            after += conversation.getEstimatedHeapSize();
+        }
+        Log.d(Config.LOGTAG, "evicted " + evicted + " messages from memory. estimated size " + (before / 1024) + "KiB -> " + (after / 1024) + "KiB");
     }
 
     @Override
@@ -1207,6 +1269,7 @@ public class XmppConnectionService extends Service {
     }
 
     private void logoutAndSave(boolean stop) {
+        flushAxolotlSessions();
         int activeAccounts = 0;
         for (final Account account : accounts) {
             if (account.getStatus() != Account.State.DISABLED) {
@@ -1625,59 +1688,102 @@ public class XmppConnectionService extends Service {
 			}
 			Log.d(Config.LOGTAG, "restoring conversations...");
 			final long startTimeConversationsRestore = SystemClock.elapsedRealtime();
-			this.conversations.addAll(databaseBackend.getConversations(Conversation.STATUS_AVAILABLE));
-			for (Iterator<Conversation> iterator = conversations.listIterator(); iterator.hasNext(); ) {
-				Conversation conversation = iterator.next();
+			final List<Conversation> restored = new ArrayList<>();
+			for (Conversation conversation : databaseBackend.getConversations(Conversation.STATUS_AVAILABLE)) {
 				Account account = accountLookupTable.get(conversation.getAccountUuid());
 				if (account != null) {
 					conversation.setAccount(account);
+					conversationIndex.add(conversation);
+					restored.add(conversation);
 				} else {
 					Log.e(Config.LOGTAG, "unable to restore Conversations with " + conversation.getJid());
-					iterator.remove();
 				}
 			}
+			this.conversations.addAll(restored);
 			long diffConversationsRestore = SystemClock.elapsedRealtime() - startTimeConversationsRestore;
 			Log.d(Config.LOGTAG, "finished restoring conversations in " + diffConversationsRestore + "ms");
 			Runnable runnable = () -> {
-				long deletionDate = getAutomaticMessageDeletionDate();
+				//expired messages are deleted from the database in the background once restoring is
+				//done; until then they are only hidden from memory
+				final long deletionDate = getAutomaticMessageDeletionDate();
 				mLastExpiryRun.set(SystemClock.elapsedRealtime());
+				final TraceSpan summaries = TraceSpan.begin("restore conversation summaries");
+				databaseBackend.restoreConversationSummaries(this.conversations);
 				if (deletionDate > 0) {
-					Log.d(Config.LOGTAG, "deleting messages that are older than " + AbstractGenerator.getTimestamp(deletionDate));
-					databaseBackend.expireOldMessages(deletionDate);
-				}
-				Log.d(Config.LOGTAG, "restoring roster...");
-				for (Account account : accounts) {
-					databaseBackend.readRoster(account.getRoster());
-					account.initAccountServices(XmppConnectionService.this); //roster needs to be loaded at this stage
+					for (Conversation conversation : this.conversations) {
+						conversation.expireOldMessages(deletionDate);
+					}
 				}
-				getBitmapCache().evictAll();
-				loadPhoneContacts();
-				Log.d(Config.LOGTAG, "restoring messages...");
-				final long startMessageRestore = SystemClock.elapsedRealtime();
+				summaries.end();
+				updateConversationUi();
+				Log.d(Config.LOGTAG, "conversation overview complete after " + (SystemClock.elapsedRealtime() - startTimeConversationsRestore) + "ms");
+				Log.d(Config.LOGTAG, "restoring rosters and messages...");
+				final TraceSpan restore = TraceSpan.begin("restore rosters and messages");
 				final Conversation quickLoad = QuickLoader.get(this.conversations);
-				if (quickLoad != null) {
-					restoreMessages(quickLoad);
-					updateConversationUi();
-					final long diffMessageRestore = SystemClock.elapsedRealtime() - startMessageRestore;
-					Log.d(Config.LOGTAG,"quickly restored "+quickLoad.getName()+" after " + diffMessageRestore + "ms");
+				final List<Callable<Void>> tasks = new ArrayList<>();
+				for (final Account account : accounts) {
+					tasks.add(() -> {
+						restoreAccount(account, quickLoad, deletionDate);
+						return null;
+					});
 				}
-				for (Conversation conversation : this.conversations) {
-					if (quickLoad != conversation) {
-						restoreMessages(conversation);
+				final ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(tasks.size(), MAX_RESTORE_THREADS)));
+				try {
+					for (Future<Void> future : executor.invokeAll(tasks)) {
+						try {
+							future.get();
+						} catch (ExecutionException e) {
+							Log.e(Config.LOGTAG, "unable to restore account", e.getCause());
+						}
 					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} finally {
+					executor.shutdown();
 				}
+				getBitmapCache().evictAll();
+				loadPhoneContacts();
 				mNotificationService.finishBacklog(false);
 				restoredFromDatabaseLatch.countDown();
-				final long diffMessageRestore = SystemClock.elapsedRealtime() - startMessageRestore;
-				Log.d(Config.LOGTAG, "finished restoring messages in " + diffMessageRestore + "ms");
+				restore.end();
 				updateConversationUi();
+				if (deletionDate > 0) {
+					Log.d(Config.LOGTAG, "deleting messages that are older than " + AbstractGenerator.getTimestamp(deletionDate));
+					expireOldMessages();
+				}
+				mDatabaseWriterExecutor.execute(() -> databaseBackend.getSearchIndex().update());
 			};
-			mDatabaseReaderExecutor.execute(runnable); //will contain one write command (expiry) but that's fine
+			mDatabaseReaderExecutor.execute(runnable);
+		}
+	}
+
+	/**
+	 * Reads the roster of the account and then restores the messages of its conversations. Runs
+	 * in parallel for different accounts.
+	 */
+	private void restoreAccount(final Account account, final Conversation quickLoad, final long deletionDate) {
+		final TraceSpan roster = TraceSpan.begin("restore roster of " + account.getJid().asBareJid());
+		databaseBackend.readRoster(account.getRoster());
+		account.initAccountServices(XmppConnectionService.this); //roster needs to be loaded at this stage
+		roster.end();
+		final TraceSpan messages = TraceSpan.begin("restore messages of " + account.getJid().asBareJid());
+		if (quickLoad != null && quickLoad.getAccount() == account) {
+			restoreMessages(quickLoad, deletionDate);
+			updateConversationUi();
+		}
+		for (Conversation conversation : this.conversations) {
+			if (conversation.getAccount() == account && quickLoad != conversation) {
+				restoreMessages(conversation, deletionDate);
+			}
 		}
+		messages.end();
 	}
 
-	private void restoreMessages(Conversation conversation) {
+	private void restoreMessages(Conversation conversation, long deletionDate) {
 		conversation.addAll(0, databaseBackend.getMessages(conversation, Config.PAGE_SIZE));
+		if (deletionDate > 0) {
+			conversation.expireOldMessages(deletionDate);
+		}
 		conversation.findUnsentTextMessages(message -> markMessage(message, Message.STATUS_WAITING));
 		conversation.findUnreadMessages(message -> mNotificationService.pushFromBacklog(message));
 	}
@@ -1795,6 +1901,10 @@ public class XmppConnectionService extends Service {
 	}
 
 	public void loadMoreMessages(final Conversation conversation, final long timestamp, final OnMoreMessagesLoaded callback) {
+		loadMoreMessages(conversation, timestamp, null, callback);
+	}
+
+	public void loadMoreMessages(final Conversation conversation, final long timestamp, final String uuid, final OnMoreMessagesLoaded callback) {
 		if (XmppConnectionService.this.getMessageArchiveService().queryInProgress(conversation, callback)) {
 			return;
 		} else if (timestamp == 0) {
@@ -1803,7 +1913,7 @@ public class XmppConnectionService extends Service {
 		Log.d(Config.LOGTAG, "load more messages for " + conversation.getName() + " prior to " + MessageGenerator.getTimestamp(timestamp));
 		final Runnable runnable = () -> {
 			final Account account = conversation.getAccount();
-			List<Message> messages = databaseBackend.getMessages(conversation, 50, timestamp);
+			List<Message> messages = databaseBackend.getMessages(conversation, 50, timestamp, uuid);
 			if (messages.size() > 0) {
 				conversation.addAll(0, messages);
 				callback.onMoreMessagesLoaded(messages.size(), conversation);
@@ -1879,14 +1989,7 @@ public class XmppConnectionService extends Service {
 	}
 
 	public boolean isConversationStillOpen(final Conversation conversation) {
-		synchronized (this.conversations) {
-			for (Conversation current : this.conversations) {
-				if (current == conversation) {
-					return true;
-				}
-			}
-		}
-		return false;
+		return conversationIndex.contains(conversation);
 	}
 
 	public Conversation findOrCreateConversation(Account account, Jid jid, boolean muc, final boolean async) {
@@ -1964,6 +2067,7 @@ public class XmppConnectionService extends Service {
 				runnable.run();
 			}
 			this.conversations.add(conversation);
+			this.conversationIndex.add(conversation);
 			updateConversationUi();
 			return conversation;
 		}
@@ -2002,6 +2106,7 @@ public class XmppConnectionService extends Service {
 			}
 			updateConversation(conversation);
 			this.conversations.remove(conversation);
+			this.conversationIndex.remove(conversation);
 			updateConversationUi();
 		}
 	}
@@ -2145,6 +2250,7 @@ public class XmppConnectionService extends Service {
 						leaveMuc(conversation);
 					}
 					conversations.remove(conversation);
+					conversationIndex.remove(conversation);
 				}
 			}
 			if (account.getXmppConnection() != null) {
@@ -2418,9 +2524,26 @@ public class XmppConnectionService extends Service {
 			}
 		}
 		this.mNotificationService.setIsInForeground(false);
+		checkpointDatabase();
 		Log.d(Config.LOGTAG, "app switched into background");
 	}
 
+	private void checkpointDatabase() {
+		mDatabaseWriterExecutor.execute(() -> {
+			flushAxolotlSessions();
+			databaseBackend.checkpoint(false);
+		});
+	}
+
+	private void flushAxolotlSessions() {
+		for (final Account account : accounts) {
+			final AxolotlService axolotlService = account.getAxolotlService();
+			if (axolotlService != null) {
+				axolotlService.flushSessions();
+			}
+		}
+	}
+
 	private void connectMultiModeConversations(Account account) {
 		List<Conversation> conversations = getConversations();
 		for (Conversation conversation : conversations) {
@@ -3511,6 +3634,14 @@ public class XmppConnectionService extends Service {
 		mDatabaseWriterExecutor.execute(() -> databaseBackend.updateConversation(conversation));
 	}
 
+	/**
+	 * Runs a database write on the serial writer executor, so callers on the stanza thread do not
+	 * wait for it.
+	 */
+	public void executeDatabaseWrite(final Runnable runnable) {
+		mDatabaseWriterExecutor.execute(runnable);
+	}
+
 	private void reconnectAccount(final Account account, final boolean force, final boolean interactive) {
 		synchronized (account) {
 			XmppConnection connection = account.getXmppConnection();
@@ -3567,6 +3698,50 @@ public class XmppConnectionService extends Service {
 		}
 	}
 
+	/**
+	 * Looks up a message in memory and, if it might have been evicted, in the database.
+	 */
+	public Message findSentMessageWithUuidOrRemoteId(final Conversation conversation, final String id) {
+		final Message message = conversation.findSentMessageWithUuidOrRemoteId(id);
+		final long evictedUpTo = conversation.getEvictedUpTo();
+		if (message != null || evictedUpTo == 0) {
+			return message;
+		}
+		return Conversation.findSentMessageWithUuidOrRemoteId(databaseBackend.getMessagesWithId(conversation, id, evictedUpTo), id);
+	}
+
+	public Message findSentMessageWithUuid(final Conversation conversation, final String id) {
+		final Message message = conversation.findSentMessageWithUuid(id);
+		final long evictedUpTo = conversation.getEvictedUpTo();
+		if (message != null || evictedUpTo == 0) {
+			return message;
+		}
+		return Conversation.findSentMessageWithUuid(databaseBackend.getMessagesWithId(conversation, id, evictedUpTo), id);
+	}
+
+	public Message findMessageWithRemoteId(final Conversation conversation, final String id, final Jid counterpart) {
+		final Message message = conversation.findMessageWithRemoteId(id, counterpart);
+		final long evictedUpTo = conversation.getEvictedUpTo();
+		if (message != null || evictedUpTo == 0) {
+			return message;
+		}
+		return Conversation.findMessageWithRemoteId(databaseBackend.getMessagesWithId(conversation, id, evictedUpTo), id, counterpart);
+	}
+
+	/**
+	 * Finds the message a correction refers to. Only the newest message exchanged with the
+	 * counterpart can be corrected, so the database is only asked if no such message is in memory.
+	 */
+	public Message findMessageWithRemoteIdAndCounterpart(final Conversation conversation, final String id, final Jid counterpart, final boolean received, final boolean carbon) {
+		final Message message = conversation.findMessageWithRemoteIdAndCounterpart(id, counterpart, received, carbon);
+		final long evictedUpTo = conversation.getEvictedUpTo();
+		if (message != null || evictedUpTo == 0 || conversation.findLastMessageWithCounterpart(counterpart, received, carbon) != null) {
+			return message;
+		}
+		final Message last = databaseBackend.getLastMessageWithCounterpart(conversation, counterpart, received, carbon, evictedUpTo);
+		return Conversation.isCorrectable(last, id) ? last : null;
+	}
+
 	public Message markMessage(final Account account, final Jid recipient, final String uuid, final int status) {
 		return markMessage(account, recipient, uuid, status, null);
 	}
@@ -3577,7 +3752,7 @@ public class XmppConnectionService extends Service {
 		}
 		for (Conversation conversation : getConversations()) {
 			if (conversation.getJid().asBareJid().equals(recipient) && conversation.getAccount() == account) {
-				final Message message = conversation.findSentMessageWithUuidOrRemoteId(uuid);
+				final Message message = findSentMessageWithUuidOrRemoteId(conversation, uuid);
 				if (message != null) {
 					markMessage(message, status, errorMessage);
 				}
@@ -3591,7 +3766,7 @@ public class XmppConnectionService extends Service {
 		if (uuid == null) {
 			return false;
 		} else {
-			Message message = conversation.findSentMessageWithUuid(uuid);
+			Message message = findSentMessageWithUuid(conversation, uuid);
 			if (message != null) {
 				if (message.getServerMsgId() == null) {
 					message.setServerMsgId(serverMessageId);
@@ -3766,12 +3941,7 @@ public class XmppConnectionService extends Service {
 	}
 
 	public Conversation findConversationByUuid(String uuid) {
-		for (Conversation conversation : getConversations()) {
-			if (conversation.getUuid().equals(uuid)) {
-				return conversation;
-			}
-		}
-		return null;
+		return conversationIndex.findByUuid(uuid);
 	}
 
 	public Conversation findUniqueConversationByJid(XmppUri xmppUri) {
@@ -3936,9 +4106,13 @@ public class XmppConnectionService extends Service {
 	}
 
 	public void sendIqPacket(final Account account, final IqPacket packet, final OnIqPacketReceived callback) {
+		sendIqPacket(account, packet, callback, Config.IQ_TIMEOUT);
+	}
+
+	public void sendIqPacket(final Account account, final IqPacket packet, final OnIqPacketReceived callback, final int timeout) {
 		final XmppConnection connection = account.getXmppConnection();
 		if (connection != null) {
-			connection.sendIqPacket(packet, callback);
+			connection.sendIqPacket(packet, callback, timeout);
 		} else if (callback != null) {
 		    callback.onIqPacketReceived(account,new IqPacket(IqPacket.TYPE.TIMEOUT));
         }
@@ -4132,6 +4306,7 @@ public class XmppConnectionService extends Service {
 						&& conversation.getMode() == Conversation.MODE_SINGLE
 						&& jidMatches) {
 					this.conversations.remove(conversation);
+					this.conversationIndex.remove(conversation);
 					markRead(conversation);
 					conversation.setStatus(Conversation.STATUS_ARCHIVED);
 					Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": archiving conversation " + conversation.getJid().asBareJid() + " because jid was blocked");
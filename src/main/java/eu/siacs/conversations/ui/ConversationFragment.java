@@ -233,13 +233,13 @@ public class ConversationFragment extends XmppFragment implements EditMessage.Ke
             toggleScrollDownButton(view);
             synchronized (ConversationFragment.this.messageList) {
                 if (firstVisibleItem < 5 && conversation != null && conversation.messagesLoaded.compareAndSet(true, false) && messageList.size() > 0) {
-                    long timestamp;
+                    final Message oldest;
                     if (messageList.get(0).getType() == Message.TYPE_STATUS && messageList.size() >= 2) {
-                        timestamp = messageList.get(1).getTimeSent();
+                        oldest = messageList.get(1);
                     } else {
-                        timestamp = messageList.get(0).getTimeSent();
+                        oldest = messageList.get(0);
                     }
-                    activity.xmppConnectionService.loadMoreMessages(conversation, timestamp, new XmppConnectionService.OnMoreMessagesLoaded() {
+                    activity.xmppConnectionService.loadMoreMessages(conversation, oldest.getTimeSent(), oldest.getUuid(), new XmppConnectionService.OnMoreMessagesLoaded() {
                         @Override
                         public void onMoreMessagesLoaded(final int c, final Conversation conversation) {
                             if (ConversationFragment.this.conversation != conversation) {
@@ -1957,6 +1957,7 @@ public class ConversationFragment extends XmppFragment implements EditMessage.Ke
         this.binding.messagesView.post(this::fireReadEvent);
         //TODO if we only do this when this fragment is running on main it won't *bing* in tablet layout which might be unnecessary since we can *see* it
         activity.xmppConnectionService.getNotificationService().setOpenConversation(this.conversation);
+        this.conversation.touch();
         return true;
     }
 
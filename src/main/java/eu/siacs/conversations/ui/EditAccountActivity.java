@@ -73,6 +73,7 @@ import eu.siacs.conversations.utils.XmppUri;
 import eu.siacs.conversations.xml.Element;
 import eu.siacs.conversations.xmpp.OnKeyStatusUpdated;
 import eu.siacs.conversations.xmpp.OnUpdateBlocklist;
+import eu.siacs.conversations.xmpp.StreamCompression;
 import eu.siacs.conversations.xmpp.XmppConnection;
 import eu.siacs.conversations.xmpp.XmppConnection.Features;
 import eu.siacs.conversations.xmpp.forms.Data;
@@ -1031,6 +1032,12 @@ public class EditAccountActivity extends OmemoActivity implements OnAccountUpdat
             } else {
                 this.binding.serverInfoSm.setText(R.string.server_info_unavailable);
             }
+            final StreamCompression compression = this.mAccount.getXmppConnection().getStreamCompression();
+            if (compression != null) {
+                this.binding.serverInfoCompression.setText(getString(R.string.server_info_compression_statistics, compression.getRatio(), compression.getCpuTimeMillis()));
+            } else {
+                this.binding.serverInfoCompression.setText(R.string.server_info_unavailable);
+            }
             if (features.pep()) {
                 AxolotlService axolotlService = this.mAccount.getAxolotlService();
                 if (axolotlService != null && axolotlService.isPepBroken()) {
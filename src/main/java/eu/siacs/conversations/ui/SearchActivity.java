@@ -41,6 +41,7 @@ import android.view.MenuItem;
 import android.view.View;
 import android.widget.AdapterView;
 import android.widget.EditText;
+import android.widget.ListView;
 
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
@@ -63,6 +64,7 @@ import eu.siacs.conversations.ui.util.PendingItem;
 import eu.siacs.conversations.ui.util.ShareUtil;
 import eu.siacs.conversations.utils.FtsUtils;
 import eu.siacs.conversations.utils.MessageUtils;
+import eu.siacs.conversations.utils.UIHelper;
 
 import static eu.siacs.conversations.ui.util.SoftKeyboardUtils.hideSoftKeyboard;
 import static eu.siacs.conversations.ui.util.SoftKeyboardUtils.showKeyboard;
@@ -262,6 +264,30 @@ public class SearchActivity extends XmppActivity implements TextWatcher, OnSearc
 		});
 	}
 
+	@Override
+	public void onMoreSearchResultsAvailable(List<String> term, List<Message> olderMessages) {
+		runOnUiThread(() -> {
+			if (!term.equals(currentSearch.get()) || this.messages.isEmpty()) {
+				return;
+			}
+			final int count = this.messages.size();
+			DateSeparator.addAll(olderMessages);
+			//the separator of the oldest result so far is dropped if the older page ends on the same day
+			final Message newest = olderMessages.get(olderMessages.size() - 1);
+			if (count > 1 && UIHelper.sameDay(newest.getTimeSent(), this.messages.get(1).getTimeSent())) {
+				this.messages.remove(0);
+			}
+			this.messages.addAll(0, olderMessages);
+			final int added = this.messages.size() - count;
+			final ListView listView = this.binding.searchResults;
+			final int position = listView.getFirstVisiblePosition();
+			final View first = listView.getChildAt(0);
+			final int top = first == null ? 0 : first.getTop();
+			messageListAdapter.notifyDataSetChanged();
+			listView.setSelectionFromTop(Math.max(0, position + added), top);
+		});
+	}
+
 	@Override
 	public void onContactPictureClicked(Message message) {
 		String fingerprint;
@@ -37,4 +37,9 @@ public interface OnSearchResultsAvailable {
 
 	void onSearchResultsAvailable(List<String> term, List<Message> messages);
 
+	/**
+	 * Further results that are older than everything delivered so far, in chronological order.
+	 */
+	void onMoreSearchResultsAvailable(List<String> term, List<Message> olderMessages);
+
 }
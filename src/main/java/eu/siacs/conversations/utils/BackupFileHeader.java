@@ -1,6 +1,6 @@
 package eu.siacs.conversations.utils;
 
-import java.io.DataInputStream;
+import java.io.DataInput;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.util.Arrays;
@@ -9,8 +9,12 @@ import rocks.xmpp.addr.Jid;
 
 public class BackupFileHeader {
 
-    private static final int VERSION = 1;
+    public static final int VERSION_SQL = 1;
+    public static final int VERSION_CHUNKED = 2;
 
+    private static final int VERSION = VERSION_CHUNKED;
+
+    private int version;
     private String app;
     private Jid jid;
     private long timestamp;
@@ -21,7 +25,8 @@ public class BackupFileHeader {
     @Override
     public String toString() {
         return "BackupFileHeader{" +
-                "app='" + app + '\'' +
+                "version=" + version +
+                ", app='" + app + '\'' +
                 ", jid=" + jid +
                 ", timestamp=" + timestamp +
                 ", iv=" + CryptoHelper.bytesToHex(iv) +
@@ -30,6 +35,11 @@ public class BackupFileHeader {
     }
 
     public BackupFileHeader(String app, Jid jid, long timestamp, byte[] iv, byte[] salt) {
+        this(VERSION, app, jid, timestamp, iv, salt);
+    }
+
+    private BackupFileHeader(int version, String app, Jid jid, long timestamp, byte[] iv, byte[] salt) {
+        this.version = version;
         this.app = app;
         this.jid = jid;
         this.timestamp = timestamp;
@@ -38,7 +48,7 @@ public class BackupFileHeader {
     }
 
     public void write(DataOutputStream dataOutputStream) throws IOException {
-        dataOutputStream.writeInt(VERSION);
+        dataOutputStream.writeInt(version);
         dataOutputStream.writeUTF(app);
         dataOutputStream.writeUTF(jid.asBareJid().toEscapedString());
         dataOutputStream.writeLong(timestamp);
@@ -46,9 +56,9 @@ public class BackupFileHeader {
         dataOutputStream.write(salt);
     }
 
-    public static BackupFileHeader read(DataInputStream inputStream) throws IOException {
+    public static BackupFileHeader read(DataInput inputStream) throws IOException {
         final int version = inputStream.readInt();
-        if (version > VERSION) {
+        if (version < VERSION_SQL || version > VERSION) {
             throw new IllegalArgumentException("Backup File version was "+version+" but app only supports up to version "+VERSION);
         }
         String app = inputStream.readUTF();
@@ -59,8 +69,25 @@ public class BackupFileHeader {
         byte[] salt = new byte[16];
         inputStream.readFully(salt);
 
-        return new BackupFileHeader(app,Jid.of(jid),timestamp,iv,salt);
+        return new BackupFileHeader(version,app,Jid.of(jid),timestamp,iv,salt);
+
+    }
+
+    public int getVersion() {
+        return version;
+    }
 
+    /**
+     * Chunked backups encrypt every chunk with its own nonce. It is derived from the IV in the
+     * header by xor-ing the chunk number into the last four bytes, which also ties every chunk to
+     * its position in the file.
+     */
+    public byte[] getChunkIv(int chunk) {
+        final byte[] chunkIv = Arrays.copyOf(iv, iv.length);
+        for (int i = 0; i < 4; ++i) {
+            chunkIv[chunkIv.length - 1 - i] ^= (byte) (chunk >>> (8 * i));
+        }
+        return chunkIv;
     }
 
     public byte[] getSalt() {
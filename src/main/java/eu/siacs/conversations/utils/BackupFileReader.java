@@ -0,0 +1,289 @@
+package eu.siacs.conversations.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import eu.siacs.conversations.services.ExportBackupService;
+
+import static eu.siacs.conversations.services.ExportBackupService.CIPHERMODE;
+import static eu.siacs.conversations.services.ExportBackupService.KEYTYPE;
+import static eu.siacs.conversations.services.ExportBackupService.PROVIDER;
+
+/**
+ * Reads backups written by {@link BackupFileWriter}. The chunk index is loaded from the encrypted
+ * trailer when the file is opened, which makes the total number of rows known upfront and allows
+ * to start reading at any chunk with {@link #seek(int)}. A trailer that fails to decrypt, which
+ * includes a wrong password as well as a truncated or modified file, fails the constructor. Rows
+ * are read with {@link #next()}; if a chunk fails to decrypt an IOException caused by a {@link
+ * javax.crypto.BadPaddingException} is thrown.
+ */
+public class BackupFileReader implements BackupRowReader {
+
+    private final RandomAccessFile file;
+    private final BackupFileHeader header;
+    private final SecretKeySpec keySpec;
+    private final List<Chunk> index;
+
+    private int chunkNumber = 0;
+    private DataInputStream records = null;
+    private String table = null;
+    private String[] columns = null;
+    private Object[] values = null;
+    private long bytesRead = 0;
+
+    public BackupFileReader(File file, String password) throws IOException {
+        this.file = new RandomAccessFile(file, "r");
+        try {
+            this.header = BackupFileHeader.read(this.file);
+            if (header.getVersion() != BackupFileHeader.VERSION_CHUNKED) {
+                throw new IOException("backup file is not chunked (version " + header.getVersion() + ")");
+            }
+            this.keySpec = new SecretKeySpec(ExportBackupService.getKey(password, header.getSalt()), KEYTYPE);
+            this.index = readIndex(this.file.getFilePointer());
+        } catch (IOException | RuntimeException e) {
+            this.file.close();
+            throw e;
+        }
+    }
+
+    private List<Chunk> readIndex(final long dataOffset) throws IOException {
+        final long length = file.length();
+        if (length < dataOffset + 4 + 8) {
+            throw new IOException("backup file is truncated");
+        }
+        file.seek(length - 8);
+        final long trailerOffset = file.readLong();
+        if (trailerOffset < dataOffset || trailerOffset > length - 8 - 4) {
+            throw new IOException("backup file is truncated (invalid trailer offset " + trailerOffset + ")");
+        }
+        file.seek(trailerOffset);
+        final int sealedLength = file.readInt();
+        if (sealedLength != length - 8 - 4 - trailerOffset) {
+            throw new IOException("backup file is truncated (invalid trailer length " + sealedLength + ")");
+        }
+        final byte[] sealed = new byte[sealedLength];
+        file.readFully(sealed);
+        final DataInputStream trailer;
+        final int trailerLength;
+        try {
+            final byte[] plain = decrypt(sealed, BackupFileWriter.TRAILER);
+            trailer = new DataInputStream(new ByteArrayInputStream(plain));
+            trailerLength = plain.length;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("unable to decrypt backup trailer", e);
+        }
+        final int count = trailer.readInt();
+        if (count < 0 || 4 + 12L * count != trailerLength) {
+            throw new IOException("invalid chunk count " + count);
+        }
+        final ArrayList<Chunk> chunks = new ArrayList<>(count);
+        long previous = dataOffset - 1;
+        for (int i = 0; i < count; ++i) {
+            final long offset = trailer.readLong();
+            final int rows = trailer.readInt();
+            if (offset <= previous || offset >= trailerOffset || rows < 0) {
+                throw new IOException("invalid index entry for chunk " + i);
+            }
+            previous = offset;
+            chunks.add(new Chunk(offset, rows));
+        }
+        return Collections.unmodifiableList(chunks);
+    }
+
+    private byte[] decrypt(byte[] sealed, int number) throws GeneralSecurityException {
+        final Cipher cipher = Compatibility.twentyEight() ? Cipher.getInstance(CIPHERMODE) : Cipher.getInstance(CIPHERMODE, PROVIDER);
+        cipher.init(Cipher.DECRYPT_MODE, keySpec, new IvParameterSpec(header.getChunkIv(number)));
+        return cipher.doFinal(sealed);
+    }
+
+    @Override
+    public BackupFileHeader getHeader() {
+        return header;
+    }
+
+    public List<Chunk> getChunks() {
+        return index;
+    }
+
+    public long getTotalRows() {
+        long total = 0;
+        for (Chunk chunk : index) {
+            total += chunk.rows;
+        }
+        return total;
+    }
+
+    /**
+     * Continues reading at the first row of the given chunk.
+     */
+    public void seek(int chunk) {
+        if (chunk < 0 || chunk > index.size()) {
+            throw new IndexOutOfBoundsException("chunk " + chunk + " of " + index.size());
+        }
+        this.chunkNumber = chunk;
+        this.records = null;
+    }
+
+    @Override
+    public boolean next() throws IOException {
+        while (true) {
+            if (records == null && !readChunk()) {
+                table = null;
+                columns = null;
+                values = null;
+                return false;
+            }
+            final int type = records.readUnsignedByte();
+            if (type == BackupFileWriter.RECORD_END) {
+                records = null;
+                continue;
+            }
+            final int length = records.readInt();
+            switch (type) {
+                case BackupFileWriter.RECORD_TABLE:
+                    table = records.readUTF();
+                    columns = new String[records.readUnsignedShort()];
+                    for (int i = 0; i < columns.length; ++i) {
+                        columns[i] = records.readUTF();
+                    }
+                    break;
+                case BackupFileWriter.RECORD_ROW:
+                    if (columns == null) {
+                        throw new IOException("row without table in chunk " + (chunkNumber - 1));
+                    }
+                    values = new Object[columns.length];
+                    for (int i = 0; i < values.length; ++i) {
+                        values[i] = readValue();
+                    }
+                    return true;
+                default:
+                    if (records.skipBytes(length) != length) {
+                        throw new IOException("truncated record in chunk " + (chunkNumber - 1));
+                    }
+                    break;
+            }
+        }
+    }
+
+    private Object readValue() throws IOException {
+        final int type = records.readUnsignedByte();
+        switch (type) {
+            case BackupFileWriter.TYPE_NULL:
+                return null;
+            case BackupFileWriter.TYPE_LONG:
+                return records.readLong();
+            case BackupFileWriter.TYPE_DOUBLE:
+                return records.readDouble();
+            case BackupFileWriter.TYPE_TEXT:
+                return new String(readBytes(), "UTF-8");
+            case BackupFileWriter.TYPE_BLOB:
+                return readBytes();
+            default:
+                throw new IOException("unknown value type " + type);
+        }
+    }
+
+    private byte[] readBytes() throws IOException {
+        final byte[] bytes = new byte[records.readInt()];
+        records.readFully(bytes);
+        return bytes;
+    }
+
+    private boolean readChunk() throws IOException {
+        if (chunkNumber >= index.size()) {
+            return false;
+        }
+        final int number = chunkNumber++;
+        file.seek(index.get(number).offset);
+        final int length = file.readInt();
+        if (length <= 0 || length > file.length() - file.getFilePointer()) {
+            throw new IOException("invalid length of chunk " + number);
+        }
+        final byte[] sealed = new byte[length];
+        file.readFully(sealed);
+        bytesRead += 4 + sealed.length;
+        final byte[] compressed;
+        try {
+            compressed = decrypt(sealed, number);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("unable to decrypt chunk " + number, e);
+        }
+        final ByteArrayOutputStream plain = new ByteArrayOutputStream(compressed.length * 4);
+        final Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            final byte[] buffer = new byte[16 * 1024];
+            while (!inflater.finished()) {
+                final int count = inflater.inflate(buffer);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("truncated chunk " + number);
+                }
+                plain.write(buffer, 0, count);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("unable to inflate chunk " + number, e);
+        } finally {
+            inflater.end();
+        }
+        records = new DataInputStream(new ByteArrayInputStream(plain.toByteArray()));
+        columns = null;
+        return true;
+    }
+
+    @Override
+    public String getTable() {
+        return table;
+    }
+
+    @Override
+    public String[] getColumns() {
+        return columns;
+    }
+
+    @Override
+    public Object[] getValues() {
+        return values;
+    }
+
+    @Override
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+
+    public static class Chunk {
+        private final long offset;
+        private final int rows;
+
+        Chunk(long offset, int rows) {
+            this.offset = offset;
+            this.rows = rows;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        public int getRows() {
+            return rows;
+        }
+    }
+}
@@ -0,0 +1,306 @@
+package eu.siacs.conversations.utils;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import static eu.siacs.conversations.services.ExportBackupService.CIPHERMODE;
+import static eu.siacs.conversations.services.ExportBackupService.KEYTYPE;
+import static eu.siacs.conversations.services.ExportBackupService.PROVIDER;
+
+/**
+ * Writes backups in the chunked format ({@link BackupFileHeader#VERSION_CHUNKED}). Rows are
+ * encoded as length-prefixed binary records and collected into chunks of about {@link
+ * #CHUNK_SIZE} bytes. Every chunk is deflated and encrypted on its own, on a small pool of
+ * threads, and the results are written in order. After the last chunk follows a trailer with the
+ * offset and row count of every chunk; the last eight bytes of the file point to that trailer.
+ *
+ * <pre>
+ * file    := header chunk* trailer long(trailer offset)
+ * chunk   := int(length) AES-GCM(deflate(record* byte(RECORD_END)))
+ * trailer := int(length) AES-GCM(int(count) (long(offset) int(rows))*)
+ * record  := byte(type) int(length) payload
+ * </pre>
+ *
+ * Chunk n is encrypted with the nonce {@link BackupFileHeader#getChunkIv(int)} of n, the trailer
+ * with that of {@link #TRAILER}. The trailer is authenticated like every chunk, so a file that
+ * has been truncated, or whose chunks have been dropped or reordered, fails to import instead of
+ * importing partially.
+ *
+ * Each chunk starts with a {@link #RECORD_TABLE} record naming the table and columns of the
+ * {@link #RECORD_ROW} records that follow, so chunks can be decoded without their predecessors.
+ * Record types a reader does not know can be skipped by their length.
+ */
+public class BackupFileWriter implements Closeable {
+
+    static final int RECORD_END = 0;
+    static final int RECORD_TABLE = 1;
+    static final int RECORD_ROW = 2;
+
+    static final int TYPE_NULL = 0;
+    static final int TYPE_LONG = 1;
+    static final int TYPE_DOUBLE = 2;
+    static final int TYPE_TEXT = 3;
+    static final int TYPE_BLOB = 4;
+
+    static final int TRAILER = -1;
+
+    private static final int CHUNK_SIZE = 1024 * 1024;
+    private static final int THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+    private static final int MAX_PENDING_CHUNKS = THREADS * 2;
+
+    private final BackupFileHeader header;
+    private final SecretKeySpec keySpec;
+    private final DataOutputStream output;
+    private final ThreadPoolExecutor executor;
+    private final ArrayDeque<PendingChunk> pending = new ArrayDeque<>();
+    private final List<BackupFileReader.Chunk> index = new ArrayList<>();
+
+    private final ByteArrayOutputStream chunk = new ByteArrayOutputStream(CHUNK_SIZE + CHUNK_SIZE / 4);
+    private final DataOutputStream chunkOutput = new DataOutputStream(chunk);
+    private final ByteArrayOutputStream record = new ByteArrayOutputStream();
+    private final DataOutputStream recordOutput = new DataOutputStream(record);
+
+    private String table = null;
+    private String[] columns = null;
+    private boolean tableWritten = false;
+    private int chunkRows = 0;
+    private int chunkNumber = 0;
+    private long position;
+    private long rows = 0;
+
+    public BackupFileWriter(File file, BackupFileHeader header, byte[] key) throws IOException {
+        if (header.getVersion() != BackupFileHeader.VERSION_CHUNKED) {
+            throw new IllegalArgumentException("unsupported backup file version " + header.getVersion());
+        }
+        this.header = header;
+        this.keySpec = new SecretKeySpec(key, KEYTYPE);
+        this.output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+        header.write(this.output);
+        this.position = this.output.size();
+        this.executor = new ThreadPoolExecutor(THREADS, THREADS, 5, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+            final Thread thread = new Thread(runnable, "BackupFileWriter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Sets the table and columns of the rows written next.
+     */
+    public void beginTable(String table, String[] columns) {
+        this.table = table;
+        this.columns = columns;
+        this.tableWritten = false;
+    }
+
+    /**
+     * Writes one row of the current table. Values must be null, a {@link Number}, a String or a
+     * byte array, in the order of the columns passed to {@link #beginTable(String, String[])}.
+     */
+    public void writeRow(Object[] values) throws IOException {
+        if (table == null) {
+            throw new IllegalStateException("no table has been set");
+        }
+        if (values.length != columns.length) {
+            throw new IllegalArgumentException("expected " + columns.length + " values but got " + values.length);
+        }
+        if (!tableWritten) {
+            record.reset();
+            recordOutput.writeUTF(table);
+            recordOutput.writeShort(columns.length);
+            for (String column : columns) {
+                recordOutput.writeUTF(column);
+            }
+            writeRecord(RECORD_TABLE);
+            tableWritten = true;
+        }
+        record.reset();
+        for (Object value : values) {
+            writeValue(value);
+        }
+        writeRecord(RECORD_ROW);
+        ++chunkRows;
+        ++rows;
+        if (chunk.size() >= CHUNK_SIZE) {
+            submitChunk();
+        }
+    }
+
+    private void writeValue(Object value) throws IOException {
+        if (value == null) {
+            recordOutput.writeByte(TYPE_NULL);
+        } else if (value instanceof Double || value instanceof Float) {
+            recordOutput.writeByte(TYPE_DOUBLE);
+            recordOutput.writeDouble(((Number) value).doubleValue());
+        } else if (value instanceof Number) {
+            recordOutput.writeByte(TYPE_LONG);
+            recordOutput.writeLong(((Number) value).longValue());
+        } else if (value instanceof String) {
+            final byte[] bytes = ((String) value).getBytes("UTF-8");
+            recordOutput.writeByte(TYPE_TEXT);
+            recordOutput.writeInt(bytes.length);
+            recordOutput.write(bytes);
+        } else if (value instanceof byte[]) {
+            final byte[] bytes = (byte[]) value;
+            recordOutput.writeByte(TYPE_BLOB);
+            recordOutput.writeInt(bytes.length);
+            recordOutput.write(bytes);
+        } else {
+            throw new IllegalArgumentException("unsupported value type " + value.getClass().getName());
+        }
+    }
+
+    private void writeRecord(int type) throws IOException {
+        chunkOutput.writeByte(type);
+        chunkOutput.writeInt(record.size());
+        record.writeTo(chunkOutput);
+    }
+
+    private void submitChunk() throws IOException {
+        if (chunk.size() == 0) {
+            return;
+        }
+        chunkOutput.writeByte(RECORD_END);
+        final byte[] plain = chunk.toByteArray();
+        final int number = chunkNumber++;
+        chunk.reset();
+        pending.add(new PendingChunk(executor.submit(() -> seal(plain, number)), chunkRows));
+        chunkRows = 0;
+        tableWritten = false;
+        while (pending.size() > MAX_PENDING_CHUNKS) {
+            writePendingChunk();
+        }
+    }
+
+    private byte[] seal(byte[] plain, int number) throws Exception {
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream(plain.length / 2);
+        final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        try {
+            deflater.setInput(plain);
+            deflater.finish();
+            final byte[] buffer = new byte[16 * 1024];
+            while (!deflater.finished()) {
+                final int count = deflater.deflate(buffer);
+                compressed.write(buffer, 0, count);
+            }
+        } finally {
+            deflater.end();
+        }
+        return encrypt(compressed.toByteArray(), number);
+    }
+
+    private byte[] encrypt(byte[] plain, int number) throws GeneralSecurityException {
+        final Cipher cipher = Compatibility.twentyEight() ? Cipher.getInstance(CIPHERMODE) : Cipher.getInstance(CIPHERMODE, PROVIDER);
+        cipher.init(Cipher.ENCRYPT_MODE, keySpec, new IvParameterSpec(header.getChunkIv(number)));
+        return cipher.doFinal(plain);
+    }
+
+    private void writePendingChunk() throws IOException {
+        final PendingChunk pendingChunk = pending.poll();
+        final byte[] sealed;
+        try {
+            sealed = pendingChunk.future.get();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("interrupted while compressing backup chunk");
+        } catch (ExecutionException e) {
+            throw new IOException("unable to compress backup chunk", e.getCause());
+        }
+        index.add(new BackupFileReader.Chunk(position, pendingChunk.rows));
+        output.writeInt(sealed.length);
+        output.write(sealed);
+        position += 4 + sealed.length;
+    }
+
+    /**
+     * @return the number of rows written so far
+     */
+    public long getRows() {
+        return rows;
+    }
+
+    /**
+     * @return the number of compressed and encrypted bytes that have been written to the file
+     */
+    public long getBytesWritten() {
+        return position;
+    }
+
+    /**
+     * Writes the remaining chunks and the trailer. The file is incomplete, and will not import,
+     * unless this method returns normally.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            submitChunk();
+            while (!pending.isEmpty()) {
+                writePendingChunk();
+            }
+            final ByteArrayOutputStream trailer = new ByteArrayOutputStream(4 + 12 * index.size());
+            final DataOutputStream trailerOutput = new DataOutputStream(trailer);
+            trailerOutput.writeInt(index.size());
+            for (BackupFileReader.Chunk entry : index) {
+                trailerOutput.writeLong(entry.getOffset());
+                trailerOutput.writeInt(entry.getRows());
+            }
+            final byte[] sealed;
+            try {
+                sealed = encrypt(trailer.toByteArray(), TRAILER);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("unable to encrypt backup trailer", e);
+            }
+            final long trailerOffset = position;
+            output.writeInt(sealed.length);
+            output.write(sealed);
+            position += 4 + sealed.length;
+            output.writeLong(trailerOffset);
+            output.flush();
+        } finally {
+            executor.shutdownNow();
+            output.close();
+        }
+    }
+
+    /**
+     * Stops all pending work and closes the file without writing the index.
+     */
+    public void abort() {
+        executor.shutdownNow();
+        try {
+            output.close();
+        } catch (IOException e) {
+            //ignored
+        }
+    }
+
+    private static class PendingChunk {
+        private final Future<byte[]> future;
+        private final int rows;
+
+        private PendingChunk(Future<byte[]> future, int rows) {
+            this.future = future;
+            this.rows = rows;
+        }
+    }
+}
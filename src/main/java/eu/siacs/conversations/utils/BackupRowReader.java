@@ -0,0 +1,39 @@
+package eu.siacs.conversations.utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Row by row access to the content of a backup file, independent of its format version.
+ */
+public interface BackupRowReader extends Closeable {
+
+    BackupFileHeader getHeader();
+
+    /**
+     * Advances to the next row.
+     *
+     * @return false once all rows have been read
+     */
+    boolean next() throws IOException;
+
+    /**
+     * @return the table of the current row
+     */
+    String getTable();
+
+    /**
+     * @return the column names of the current row
+     */
+    String[] getColumns();
+
+    /**
+     * @return the values of the current row; null, Long, Double, String or byte[]
+     */
+    Object[] getValues();
+
+    /**
+     * @return the number of bytes of the backup file that have been consumed so far
+     */
+    long getBytesRead();
+}
@@ -0,0 +1,145 @@
+package eu.siacs.conversations.utils;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import eu.siacs.conversations.Config;
+
+/**
+ * Runs tasks one after another, in submission order, on a worker thread that is started on
+ * demand and that goes away after being idle for a while. The queue is bounded; once it is full
+ * {@link #execute(Runnable)} blocks the submitting thread until the worker caught up. Threads that
+ * must never block (timers shared between accounts) use {@link #executeNonBlocking(Runnable)},
+ * which puts the task on an unbounded overflow queue instead; the worker runs overflowed tasks
+ * before the next regular one.
+ */
+public class BoundedSerialExecutor {
+
+    private static final long IDLE_TIMEOUT = 30000;
+    private static final Runnable WAKE_UP = () -> {
+    };
+
+    private final String name;
+    private final LinkedBlockingQueue<Runnable> tasks;
+    private final ConcurrentLinkedQueue<Runnable> overflow = new ConcurrentLinkedQueue<>();
+    private Thread worker = null;
+
+    private final AtomicLong executed = new AtomicLong(0);
+    private final AtomicLong blocked = new AtomicLong(0);
+    private final AtomicLong blockedMillis = new AtomicLong(0);
+    private final AtomicLong overflowed = new AtomicLong(0);
+    private volatile int maxQueueDepth = 0;
+
+    public BoundedSerialExecutor(final String name, final int capacity) {
+        this.name = name;
+        this.tasks = new LinkedBlockingQueue<>(capacity);
+    }
+
+    public void execute(final Runnable runnable) throws InterruptedException {
+        if (!tasks.offer(runnable)) {
+            final long start = SystemClock.elapsedRealtime();
+            startWorker();
+            tasks.put(runnable);
+            blocked.incrementAndGet();
+            blockedMillis.addAndGet(SystemClock.elapsedRealtime() - start);
+        }
+        startWorker();
+        final int depth = tasks.size();
+        if (depth > maxQueueDepth) {
+            maxQueueDepth = depth;
+        }
+    }
+
+    public void executeNonBlocking(final Runnable runnable) {
+        if (!tasks.offer(runnable)) {
+            overflow.add(runnable);
+            overflowed.incrementAndGet();
+            //the worker might have drained the queue in the meantime and be waiting for a new task
+            tasks.offer(WAKE_UP);
+        }
+        startWorker();
+    }
+
+    /**
+     * Blocks until every task that has been submitted before has run. Must not be called from a
+     * task.
+     */
+    public void awaitIdle() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        execute(latch::countDown);
+        latch.await();
+    }
+
+    private synchronized void startWorker() {
+        if (worker == null) {
+            worker = new Thread(this::work, name);
+            worker.start();
+        }
+    }
+
+    private void work() {
+        while (true) {
+            Runnable runnable = overflow.poll();
+            if (runnable == null) {
+                try {
+                    runnable = tasks.poll(IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    runnable = null;
+                }
+            }
+            if (runnable == WAKE_UP) {
+                continue;
+            }
+            if (runnable == null) {
+                synchronized (this) {
+                    if (tasks.isEmpty() && overflow.isEmpty()) {
+                        worker = null;
+                        return;
+                    }
+                }
+                continue;
+            }
+            try {
+                runnable.run();
+            } catch (RuntimeException e) {
+                Log.d(Config.LOGTAG, "uncaught exception on executor '" + name + "'", e);
+            }
+            executed.incrementAndGet();
+        }
+    }
+
+    public int getQueueDepth() {
+        return tasks.size();
+    }
+
+    public int getMaxQueueDepth() {
+        return maxQueueDepth;
+    }
+
+    public long getExecuted() {
+        return executed.get();
+    }
+
+    public long getBlocked() {
+        return blocked.get();
+    }
+
+    public long getBlockedMillis() {
+        return blockedMillis.get();
+    }
+
+    @Override
+    public String toString() {
+        return "executed=" + getExecuted()
+                + ", queue depth=" + getQueueDepth()
+                + ", max queue depth=" + getMaxQueueDepth()
+                + ", blocked=" + getBlocked() + " (" + getBlockedMillis() + "ms)"
+                + ", overflowed=" + overflowed.get();
+    }
+}
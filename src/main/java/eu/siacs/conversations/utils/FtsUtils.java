@@ -66,7 +66,8 @@ public class FtsUtils {
 			} else if (term.contains("*") || term.startsWith("-")) {
 				builder.append(term);
 			} else {
-				builder.append('*').append(term).append('*');
+				//FTS only supports prefix queries; those are served by the prefix index
+				builder.append(term).append('*');
 			}
 		}
 		return builder.toString();
@@ -30,6 +30,8 @@
 package eu.siacs.conversations.utils;
 
 
+import android.util.LruCache;
+
 import java.util.Arrays;
 import java.util.List;
 import java.util.Locale;
@@ -41,6 +43,8 @@ public class JidHelper {
 
 	private static List<String> LOCALPART_BLACKLIST = Arrays.asList("xmpp","jabber","me");
 
+	private static final LruCache<String, Jid> JID_CACHE = new LruCache<>(512);
+
 	public static String localPartOrFallback(Jid jid) {
 		if (LOCALPART_BLACKLIST.contains(jid.getLocal().toLowerCase(Locale.ENGLISH))) {
 			final String domain = jid.getDomain();
@@ -53,10 +57,26 @@ public class JidHelper {
 
 	public static Jid parseOrFallbackToInvalid(String jid) {
 		try {
-			return Jid.of(jid);
+			return intern(jid);
 		} catch (IllegalArgumentException e) {
 			return InvalidJid.of(jid, true);
 		}
 	}
 
+	/**
+	 * Like Jid.of() but returns the same instance for recently parsed strings. Rows read from the
+	 * database repeat the same few counterparts over and over.
+	 */
+	public static Jid intern(String value) {
+		if (value == null) {
+			throw new IllegalArgumentException("jid must not be null");
+		}
+		Jid jid = JID_CACHE.get(value);
+		if (jid == null) {
+			jid = Jid.of(value);
+			JID_CACHE.put(value, jid);
+		}
+		return jid;
+	}
+
 }
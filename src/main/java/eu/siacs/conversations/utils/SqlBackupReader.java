@@ -0,0 +1,298 @@
+package eu.siacs.conversations.utils;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.zip.GZIPInputStream;
+
+import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import eu.siacs.conversations.services.ExportBackupService;
+
+import static eu.siacs.conversations.services.ExportBackupService.CIPHERMODE;
+import static eu.siacs.conversations.services.ExportBackupService.KEYTYPE;
+import static eu.siacs.conversations.services.ExportBackupService.PROVIDER;
+
+/**
+ * Reads backups in the SQL format ({@link BackupFileHeader#VERSION_SQL}). Instead of handing
+ * every statement to SQLite, the INSERT statements written by older versions of
+ * ExportBackupService are parsed into rows of typed values. Unquoted numbers become Long (or
+ * Double), quoted strings become String and NULL becomes null; string literals may span lines.
+ */
+public class SqlBackupReader implements BackupRowReader {
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private final BackupFileHeader header;
+    private final CountingInputStream counter;
+    private final Reader reader;
+    private final char[] buffer = new char[BUFFER_SIZE];
+    private final StringBuilder token = new StringBuilder();
+    private int position = 0;
+    private int limit = 0;
+
+    private boolean inStatement = false;
+    private String table = null;
+    private String[] columns = null;
+    private Object[] values = null;
+
+    public SqlBackupReader(File file, String password) throws IOException {
+        final FileInputStream fileInputStream = new FileInputStream(file);
+        try {
+            this.counter = new CountingInputStream(fileInputStream);
+            this.header = BackupFileHeader.read(new DataInputStream(counter));
+            if (header.getVersion() != BackupFileHeader.VERSION_SQL) {
+                throw new IOException("backup file is not in sql format (version " + header.getVersion() + ")");
+            }
+            final Cipher cipher = Compatibility.twentyEight() ? Cipher.getInstance(CIPHERMODE) : Cipher.getInstance(CIPHERMODE, PROVIDER);
+            final byte[] key = ExportBackupService.getKey(password, header.getSalt());
+            cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key, KEYTYPE), new IvParameterSpec(header.getIv()));
+            final GZIPInputStream gzipInputStream = new GZIPInputStream(new CipherInputStream(counter, cipher), BUFFER_SIZE);
+            this.reader = new InputStreamReader(gzipInputStream, "UTF-8");
+        } catch (GeneralSecurityException e) {
+            fileInputStream.close();
+            throw new IOException(e);
+        } catch (IOException | RuntimeException e) {
+            fileInputStream.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public BackupFileHeader getHeader() {
+        return header;
+    }
+
+    @Override
+    public boolean next() throws IOException {
+        if (!inStatement) {
+            int c = skipWhitespace();
+            if (c == -1) {
+                table = null;
+                columns = null;
+                values = null;
+                return false;
+            }
+            --position;
+            readStatementHead();
+            inStatement = true;
+        }
+        values = readTuple();
+        final int c = skipWhitespace();
+        if (c == ';') {
+            inStatement = false;
+        } else if (c != ',') {
+            throw unexpected(c, "',' or ';'");
+        }
+        return true;
+    }
+
+    private void readStatementHead() throws IOException {
+        expectKeyword("INSERT");
+        expectKeyword("INTO");
+        table = readIdentifier();
+        expect('(');
+        final ArrayList<String> names = new ArrayList<>();
+        int c;
+        do {
+            names.add(readIdentifier());
+            c = skipWhitespace();
+        } while (c == ',');
+        if (c != ')') {
+            throw unexpected(c, "')'");
+        }
+        columns = names.toArray(new String[0]);
+        expectKeyword("VALUES");
+    }
+
+    private Object[] readTuple() throws IOException {
+        expect('(');
+        final Object[] tuple = new Object[columns.length];
+        for (int i = 0; i < tuple.length; ++i) {
+            if (i != 0) {
+                expect(',');
+            }
+            tuple[i] = readValue();
+        }
+        expect(')');
+        return tuple;
+    }
+
+    private Object readValue() throws IOException {
+        final int c = skipWhitespace();
+        if (c == '\'') {
+            token.setLength(0);
+            while (true) {
+                final int d = read();
+                if (d == -1) {
+                    throw unexpected(d, "end of string literal");
+                } else if (d == '\'') {
+                    if (peek() != '\'') {
+                        return token.toString();
+                    }
+                    ++position;
+                }
+                token.append((char) d);
+            }
+        } else if (c == 'N' || c == 'n') {
+            --position;
+            expectKeyword("NULL");
+            return null;
+        } else if (c == '-' || c == '.' || (c >= '0' && c <= '9')) {
+            token.setLength(0);
+            token.append((char) c);
+            int d;
+            while ((d = peek()) != -1 && (d == '.' || d == 'e' || d == 'E' || d == '+' || d == '-' || (d >= '0' && d <= '9'))) {
+                token.append((char) d);
+                ++position;
+            }
+            final String number = token.toString();
+            try {
+                return Long.parseLong(number);
+            } catch (NumberFormatException e) {
+                try {
+                    return Double.parseDouble(number);
+                } catch (NumberFormatException f) {
+                    throw new IOException("invalid number " + number);
+                }
+            }
+        } else {
+            throw unexpected(c, "value");
+        }
+    }
+
+    private String readIdentifier() throws IOException {
+        int c = skipWhitespace();
+        token.setLength(0);
+        while (c == '_' || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')) {
+            token.append((char) c);
+            c = read();
+        }
+        if (c != -1) {
+            --position;
+        }
+        if (token.length() == 0) {
+            throw unexpected(c, "identifier");
+        }
+        return token.toString();
+    }
+
+    private void expectKeyword(String keyword) throws IOException {
+        final String identifier = readIdentifier();
+        if (!keyword.equalsIgnoreCase(identifier)) {
+            throw new IOException("expected " + keyword + " but got " + identifier);
+        }
+    }
+
+    private void expect(char expected) throws IOException {
+        final int c = skipWhitespace();
+        if (c != expected) {
+            throw unexpected(c, "'" + expected + "'");
+        }
+    }
+
+    private static IOException unexpected(int c, String expected) {
+        return new IOException("expected " + expected + " but got " + (c == -1 ? "end of file" : "'" + (char) c + "'"));
+    }
+
+    private int skipWhitespace() throws IOException {
+        int c;
+        do {
+            c = read();
+        } while (c == ' ' || c == '\n' || c == '\r' || c == '\t');
+        return c;
+    }
+
+    private int read() throws IOException {
+        if (position == limit && !fill()) {
+            return -1;
+        }
+        return buffer[position++];
+    }
+
+    private int peek() throws IOException {
+        if (position == limit && !fill()) {
+            return -1;
+        }
+        return buffer[position];
+    }
+
+    private boolean fill() throws IOException {
+        final int count = reader.read(buffer, 0, buffer.length);
+        if (count <= 0) {
+            return false;
+        }
+        position = 0;
+        limit = count;
+        return true;
+    }
+
+    @Override
+    public String getTable() {
+        return table;
+    }
+
+    @Override
+    public String[] getColumns() {
+        return columns;
+    }
+
+    @Override
+    public Object[] getValues() {
+        return values;
+    }
+
+    @Override
+    public long getBytesRead() {
+        return counter.count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+
+        private long count = 0;
+
+        private CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = super.read();
+            if (b != -1) {
+                ++count;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            final int read = super.read(b, off, len);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            final long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package eu.siacs.conversations.utils;
+
+import android.os.Build;
+import android.os.SystemClock;
+import android.os.Trace;
+import android.util.Log;
+
+import eu.siacs.conversations.Config;
+
+/**
+ * Times a phase of work. The duration is logged when the span ends and, on API 18 and later, the
+ * span also shows up as a section in systrace. A span has to be ended on the thread that began it.
+ */
+public class TraceSpan {
+
+	private final String name;
+	private final long start;
+
+	private TraceSpan(final String name) {
+		this.name = name;
+		this.start = SystemClock.elapsedRealtime();
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+			Trace.beginSection(name.length() > 127 ? name.substring(0, 127) : name);
+		}
+	}
+
+	public static TraceSpan begin(final String name) {
+		return new TraceSpan(name);
+	}
+
+	public long end() {
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+			Trace.endSection();
+		}
+		final long duration = SystemClock.elapsedRealtime() - start;
+		Log.d(Config.LOGTAG, "span '" + name + "' took " + duration + "ms");
+		return duration;
+	}
+}
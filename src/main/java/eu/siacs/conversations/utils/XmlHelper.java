@@ -1,16 +1,54 @@
 package eu.siacs.conversations.utils;
 
+import java.io.IOException;
+
 import eu.siacs.conversations.xml.Element;
 
 public class XmlHelper {
 	public static String encodeEntities(String content) {
-		content = content.replace("&", "&amp;");
-		content = content.replace("<", "&lt;");
-		content = content.replace(">", "&gt;");
-		content = content.replace("\"", "&quot;");
-		content = content.replace("'", "&apos;");
-		content = content.replaceAll("[\\p{Cntrl}&&[^\n\t\r]]", "");
-		return content;
+		final StringBuilder builder = new StringBuilder(content.length());
+		try {
+			appendEncodedEntities(builder, content);
+		} catch (IOException e) {
+			throw new AssertionError(e);
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * Escapes the content while appending it. Unescaped runs are passed on in one piece and
+	 * control characters (other than tab, new line and carriage return) are dropped.
+	 */
+	public static void appendEncodedEntities(final Appendable output, final String content) throws IOException {
+		int start = 0;
+		final int length = content.length();
+		for (int i = 0; i < length; ++i) {
+			final char c = content.charAt(i);
+			final String replacement;
+			if (c == '&') {
+				replacement = "&amp;";
+			} else if (c == '<') {
+				replacement = "&lt;";
+			} else if (c == '>') {
+				replacement = "&gt;";
+			} else if (c == '"') {
+				replacement = "&quot;";
+			} else if (c == '\'') {
+				replacement = "&apos;";
+			} else if ((c < 0x20 && c != '\n' && c != '\t' && c != '\r') || c == 0x7f) {
+				replacement = "";
+			} else {
+				continue;
+			}
+			if (i > start) {
+				output.append(content, start, i);
+			}
+			output.append(replacement);
+			start = i + 1;
+		}
+		if (start < length) {
+			output.append(content, start, length);
+		}
 	}
 
 	public static String printElementNames(final Element element) {
@@ -0,0 +1,110 @@
+package eu.siacs.conversations.xml;
+
+import java.util.Arrays;
+
+/**
+ * Small attribute store backed by two parallel arrays. Stanzas rarely carry more than a handful
+ * of attributes so probing the key array is cheaper than hashing and far smaller than a
+ * Hashtable per element. Common attribute names are interned so that most lookups succeed on
+ * the reference comparison alone.
+ */
+public final class Attributes {
+
+	private static final String[] COMMON_NAMES = {"xmlns", "id", "type", "to", "from", "xml:lang", "name", "var", "jid", "node"};
+	private static final int INITIAL_CAPACITY = 2;
+
+	private String[] keys;
+	private String[] values;
+	private int size = 0;
+
+	public Attributes() {
+
+	}
+
+	public static String intern(final String name) {
+		for (String common : COMMON_NAMES) {
+			if (common.equals(name)) {
+				return common;
+			}
+		}
+		return name;
+	}
+
+	private int indexOf(final String name) {
+		for (int i = 0; i < size; ++i) {
+			if (keys[i] == name) {
+				return i;
+			}
+		}
+		for (int i = 0; i < size; ++i) {
+			if (keys[i].equals(name)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	public String get(final String name) {
+		if (name == null) {
+			return null;
+		}
+		final int index = indexOf(name);
+		return index < 0 ? null : values[index];
+	}
+
+	public boolean containsKey(final String name) {
+		return name != null && indexOf(name) >= 0;
+	}
+
+	public void put(final String name, final String value) {
+		if (name == null || value == null) {
+			throw new NullPointerException();
+		}
+		final int index = indexOf(name);
+		if (index >= 0) {
+			values[index] = value;
+			return;
+		}
+		if (keys == null) {
+			keys = new String[INITIAL_CAPACITY];
+			values = new String[INITIAL_CAPACITY];
+		} else if (size == keys.length) {
+			keys = Arrays.copyOf(keys, size * 2);
+			values = Arrays.copyOf(values, size * 2);
+		}
+		keys[size] = intern(name);
+		values[size] = value;
+		++size;
+	}
+
+	public void remove(final String name) {
+		final int index = name == null ? -1 : indexOf(name);
+		if (index < 0) {
+			return;
+		}
+		final int tail = size - index - 1;
+		if (tail > 0) {
+			System.arraycopy(keys, index + 1, keys, index, tail);
+			System.arraycopy(values, index + 1, values, index, tail);
+		}
+		--size;
+		keys[size] = null;
+		values[size] = null;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public String getKey(final int index) {
+		return keys[index];
+	}
+
+	public String getValue(final int index) {
+		return values[index];
+	}
+}
@@ -0,0 +1,79 @@
+package eu.siacs.conversations.xml;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Child list of an {@link Element} that lazily builds a name index once it holds more than
+ * {@link #INDEX_THRESHOLD} children. Any structural modification (tracked through modCount)
+ * invalidates the index, so subclasses of Element may keep mutating their children directly.
+ */
+class ChildList extends ArrayList<Element> {
+
+	private static final int INDEX_THRESHOLD = 6;
+
+	private HashMap<String, Object> index = null;
+	private int indexedModCount = -1;
+
+	Element find(final String name, final String namespace) {
+		if (size() <= INDEX_THRESHOLD) {
+			return scan(name, namespace);
+		}
+		if (index == null || indexedModCount != modCount) {
+			buildIndex();
+		}
+		final Object candidates = index.get(name);
+		if (candidates instanceof Element) {
+			final Element child = (Element) candidates;
+			return matches(child, name, namespace) ? child : null;
+		} else if (candidates != null) {
+			for (Element child : (Element[]) candidates) {
+				if (matches(child, name, namespace)) {
+					return child;
+				}
+			}
+		}
+		return null;
+	}
+
+	private Element scan(final String name, final String namespace) {
+		for (int i = 0; i < size(); ++i) {
+			final Element child = get(i);
+			if (matches(child, name, namespace)) {
+				return child;
+			}
+		}
+		return null;
+	}
+
+	private static boolean matches(final Element child, final String name, final String namespace) {
+		return name.equals(child.getName()) && (namespace == null || namespace.equals(child.getNamespace()));
+	}
+
+	private void buildIndex() {
+		final HashMap<String, List<Element>> byName = new HashMap<>();
+		for (int i = 0; i < size(); ++i) {
+			final Element child = get(i);
+			List<Element> list = byName.get(child.getName());
+			if (list == null) {
+				list = new ArrayList<>(1);
+				byName.put(child.getName(), list);
+			}
+			list.add(child);
+		}
+		final HashMap<String, Object> index = new HashMap<>(byName.size() * 2);
+		for (HashMap.Entry<String, List<Element>> entry : byName.entrySet()) {
+			final List<Element> list = entry.getValue();
+			index.put(entry.getKey(), list.size() == 1 ? list.get(0) : list.toArray(new Element[0]));
+		}
+		this.index = index;
+		this.indexedModCount = modCount;
+	}
+
+	@Override
+	public Element set(int position, Element element) {
+		this.index = null;
+		return super.set(position, element);
+	}
+}
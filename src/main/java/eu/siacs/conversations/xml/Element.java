@@ -3,9 +3,8 @@ package eu.siacs.conversations.xml;
 import android.support.annotation.NonNull;
 import android.util.Log;
 
-import java.util.ArrayList;
+import java.io.IOException;
 import java.util.HashMap;
-import java.util.Hashtable;
 import java.util.List;
 import java.util.Locale;
 
@@ -17,9 +16,10 @@ import rocks.xmpp.addr.Jid;
 
 public class Element {
 	private final String name;
-	private Hashtable<String, String> attributes = new Hashtable<>();
+	private Attributes attributes = new Attributes();
+	private String namespace;
 	private String content;
-	protected List<Element> children = new ArrayList<>();
+	protected List<Element> children = new ChildList();
 
 	public Element(String name) {
 		this.name = name;
@@ -58,6 +58,9 @@ public class Element {
 	}
 
 	public Element findChild(String name) {
+		if (name != null && this.children instanceof ChildList) {
+			return ((ChildList) this.children).find(name, null);
+		}
 		for (Element child : this.children) {
 			if (child.getName().equals(name)) {
 				return child;
@@ -99,8 +102,11 @@ public class Element {
 	}
 
 	public Element findChild(String name, String xmlns) {
+		if (this.children instanceof ChildList) {
+			return ((ChildList) this.children).find(name, xmlns);
+		}
 		for (Element child : this.children) {
-			if (name.equals(child.getName()) && xmlns.equals(child.getAttribute("xmlns"))) {
+			if (name.equals(child.getName()) && xmlns.equals(child.getNamespace())) {
 				return child;
 			}
 		}
@@ -136,26 +142,29 @@ public class Element {
 	public Element setAttribute(String name, String value) {
 		if (name != null && value != null) {
 			this.attributes.put(name, value);
+			if ("xmlns".equals(name)) {
+				this.namespace = value;
+			}
 		}
 		return this;
 	}
 
 	public Element removeAttribute(String name) {
 		this.attributes.remove(name);
+		if ("xmlns".equals(name)) {
+			this.namespace = null;
+		}
 		return this;
 	}
 
-	public Element setAttributes(Hashtable<String, String> attributes) {
+	public Element setAttributes(Attributes attributes) {
 		this.attributes = attributes;
+		this.namespace = attributes.get("xmlns");
 		return this;
 	}
 
 	public String getAttribute(String name) {
-		if (this.attributes.containsKey(name)) {
-			return this.attributes.get(name);
-		} else {
-			return null;
-		}
+		return this.attributes.get(name);
 	}
 
 	public Jid getAttributeAsJid(String name) {
@@ -170,29 +179,41 @@ public class Element {
 		return null;
 	}
 
-	public Hashtable<String, String> getAttributes() {
+	public Attributes getAttributes() {
 		return this.attributes;
 	}
 
-	public String toString() {
-		StringBuilder elementOutput = new StringBuilder();
-		if ((content == null) && (children.size() == 0)) {
-			Tag emptyTag = Tag.empty(name);
-			emptyTag.setAtttributes(this.attributes);
-			elementOutput.append(emptyTag.toString());
+	/**
+	 * Serializes the element straight into the output without building intermediate strings.
+	 */
+	public void appendTo(final Appendable output) throws IOException {
+		output.append('<').append(name);
+		for (int i = 0; i < attributes.size(); ++i) {
+			output.append(' ').append(attributes.getKey(i)).append("=\"");
+			XmlHelper.appendEncodedEntities(output, attributes.getValue(i));
+			output.append('"');
+		}
+		if (content == null && children.size() == 0) {
+			output.append("/>");
 		} else {
-			Tag startTag = Tag.start(name);
-			startTag.setAtttributes(this.attributes);
-			elementOutput.append(startTag);
+			output.append('>');
 			if (content != null) {
-				elementOutput.append(XmlHelper.encodeEntities(content));
+				XmlHelper.appendEncodedEntities(output, content);
 			} else {
 				for (Element child : children) {
-					elementOutput.append(child.toString());
+					child.appendTo(output);
 				}
 			}
-			Tag endTag = Tag.end(name);
-			elementOutput.append(endTag);
+			output.append("</").append(name).append('>');
+		}
+	}
+
+	public String toString() {
+		final StringBuilder elementOutput = new StringBuilder();
+		try {
+			appendTo(elementOutput);
+		} catch (IOException e) {
+			throw new AssertionError(e);
 		}
 		return elementOutput.toString();
 	}
@@ -219,6 +240,6 @@ public class Element {
 	}
 
 	public String getNamespace() {
-		return getAttribute("xmlns");
+		return this.namespace;
 	}
 }
@@ -13,6 +13,8 @@ public final class Namespace {
 	public static final String OOB = "jabber:x:oob";
 	public static final String SASL = "urn:ietf:params:xml:ns:xmpp-sasl";
 	public static final String TLS = "urn:ietf:params:xml:ns:xmpp-tls";
+	public static final String COMPRESSION = "http://jabber.org/protocol/compress";
+	public static final String COMPRESSION_FEATURE = "http://jabber.org/features/compress";
 	public static final String PUBSUB = "http://jabber.org/protocol/pubsub";
 	public static final String PUBSUB_PUBLISH_OPTIONS = PUBSUB+"#publish-options";
 	public static final String PUBSUB_ERROR = PUBSUB+"#errors";
@@ -1,9 +1,6 @@
 package eu.siacs.conversations.xml;
 
-import java.util.Hashtable;
-import java.util.Iterator;
-import java.util.Map.Entry;
-import java.util.Set;
+import java.io.IOException;
 
 import eu.siacs.conversations.utils.XmlHelper;
 
@@ -15,7 +12,7 @@ public class Tag {
 
 	protected int type;
 	protected String name;
-	protected Hashtable<String, String> attributes = new Hashtable<String, String>();
+	protected Attributes attributes = new Attributes();
 
 	protected Tag(int type, String name) {
 		this.type = type;
@@ -51,7 +48,7 @@ public class Tag {
 		return this;
 	}
 
-	public Tag setAtttributes(Hashtable<String, String> attributes) {
+	public Tag setAtttributes(Attributes attributes) {
 		this.attributes = attributes;
 		return this;
 	}
@@ -72,33 +69,36 @@ public class Tag {
 		return (this.type == NO);
 	}
 
-	public String toString() {
-		StringBuilder tagOutput = new StringBuilder();
-		tagOutput.append('<');
+	public void appendTo(final Appendable output) throws IOException {
+		output.append('<');
 		if (type == END) {
-			tagOutput.append('/');
+			output.append('/');
 		}
-		tagOutput.append(name);
+		output.append(name);
 		if (type != END) {
-			Set<Entry<String, String>> attributeSet = attributes.entrySet();
-			Iterator<Entry<String, String>> it = attributeSet.iterator();
-			while (it.hasNext()) {
-				Entry<String, String> entry = it.next();
-				tagOutput.append(' ');
-				tagOutput.append(entry.getKey());
-				tagOutput.append("=\"");
-				tagOutput.append(XmlHelper.encodeEntities(entry.getValue()));
-				tagOutput.append('"');
+			for (int i = 0; i < attributes.size(); ++i) {
+				output.append(' ').append(attributes.getKey(i)).append("=\"");
+				XmlHelper.appendEncodedEntities(output, attributes.getValue(i));
+				output.append('"');
 			}
 		}
 		if (type == EMPTY) {
-			tagOutput.append('/');
+			output.append('/');
+		}
+		output.append('>');
+	}
+
+	public String toString() {
+		final StringBuilder tagOutput = new StringBuilder();
+		try {
+			appendTo(tagOutput);
+		} catch (IOException e) {
+			throw new AssertionError(e);
 		}
-		tagOutput.append('>');
 		return tagOutput.toString();
 	}
 
-	public Hashtable<String, String> getAttributes() {
+	public Attributes getAttributes() {
 		return this.attributes;
 	}
 }
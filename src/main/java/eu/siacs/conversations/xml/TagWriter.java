@@ -2,25 +2,48 @@ package eu.siacs.conversations.xml;
 
 import android.util.Log;
 
+import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import eu.siacs.conversations.Config;
 import eu.siacs.conversations.xmpp.stanzas.AbstractStanza;
 
+/**
+ * Writes everything that goes out on the stream (document declaration, stream tags, nonzas and
+ * stanzas) through one ordered queue. The writer thread drains whatever is pending into a single
+ * buffered write and flushes once per wakeup. If a write fails the writer thread stops and the
+ * failure is rethrown by every subsequent attempt to write a tag or an element.
+ */
 public class TagWriter {
 
-	private OutputStreamWriter outputStream;
-	private boolean finished = false;
-	private LinkedBlockingQueue<AbstractStanza> writeQueue = new LinkedBlockingQueue<AbstractStanza>();
+	private static final int BUFFER_SIZE = 8192;
+	private static final String DOCUMENT_DECLARATION = "<?xml version='1.0'?>";
+	private static final Object WAKE_UP = new Object();
+
+	private volatile Writer outputStream;
+	private volatile boolean finished = false;
+	private volatile IOException failure = null;
+	private final LinkedBlockingQueue<Object> writeQueue = new LinkedBlockingQueue<>();
 	private CountDownLatch stanzaWriterCountDownLatch = null;
 
+	private final AtomicLong batchesWritten = new AtomicLong(0);
+	private final AtomicLong itemsWritten = new AtomicLong(0);
+	private volatile int lastBatchSize = 0;
+	private volatile int maxBatchSize = 0;
+	private volatile int maxQueueDepth = 0;
+
 	private Thread asyncStanzaWriter = new Thread() {
 
+		private final ArrayList<Object> batch = new ArrayList<>();
+
 		@Override
 		public void run() {
 			stanzaWriterCountDownLatch = new CountDownLatch(1);
@@ -29,11 +52,19 @@ public class TagWriter {
 					break;
 				}
 				try {
-					AbstractStanza output = writeQueue.take();
-					outputStream.write(output.toString());
-					if (writeQueue.size() == 0) {
-						outputStream.flush();
+					batch.add(writeQueue.take());
+					writeQueue.drainTo(batch);
+					final Writer writer = outputStream;
+					for (Object output : batch) {
+						write(writer, output);
 					}
+					writer.flush();
+					recordBatch(batch.size());
+					batch.clear();
+				} catch (IOException e) {
+					failure = e;
+					writeQueue.clear();
+					break;
 				} catch (Exception e) {
 					break;
 				}
@@ -46,59 +77,93 @@ public class TagWriter {
 	public TagWriter() {
 	}
 
+	private static void write(final Writer writer, final Object output) throws IOException {
+		if (output == WAKE_UP) {
+			return;
+		} else if (output instanceof Element) {
+			((Element) output).appendTo(writer);
+		} else if (output instanceof Tag) {
+			((Tag) output).appendTo(writer);
+		} else {
+			writer.write(output.toString());
+		}
+	}
+
+	private void recordBatch(final int size) {
+		batchesWritten.incrementAndGet();
+		itemsWritten.addAndGet(size);
+		lastBatchSize = size;
+		if (size > maxBatchSize) {
+			maxBatchSize = size;
+		}
+	}
+
 	public synchronized void setOutputStream(OutputStream out) throws IOException {
 		if (out == null) {
 			throw new IOException();
 		}
-		this.outputStream = new OutputStreamWriter(out);
+		this.outputStream = new BufferedWriter(new OutputStreamWriter(out), BUFFER_SIZE);
 	}
 
 	public TagWriter beginDocument() throws IOException {
 		if (outputStream == null) {
 			throw new IOException("output stream was null");
 		}
-		outputStream.write("<?xml version='1.0'?>");
-		outputStream.flush();
+		enqueue(DOCUMENT_DECLARATION);
 		return this;
 	}
 
-	public synchronized  TagWriter writeTag(Tag tag) throws IOException {
+	public TagWriter writeTag(Tag tag) throws IOException {
 		if (outputStream == null) {
 			throw new IOException("output stream was null");
 		}
-		outputStream.write(tag.toString());
-		outputStream.flush();
+		enqueue(tag);
 		return this;
 	}
 
-	public synchronized TagWriter writeElement(Element element) throws IOException {
+	public TagWriter writeElement(Element element) throws IOException {
 		if (outputStream == null) {
 			throw new IOException("output stream was null");
 		}
-		outputStream.write(element.toString());
-		outputStream.flush();
+		enqueue(element);
 		return this;
 	}
 
 	public TagWriter writeStanzaAsync(AbstractStanza stanza) {
+		try {
+			enqueue(stanza);
+		} catch (IOException e) {
+			Log.d(Config.LOGTAG, "unable to write stanza to failed TagWriter (" + e.getMessage() + ")");
+		}
+		return this;
+	}
+
+	private void enqueue(final Object output) throws IOException {
+		final IOException failure = this.failure;
+		if (failure != null) {
+			throw new IOException("writer thread failed", failure);
+		}
 		if (finished) {
-			Log.d(Config.LOGTAG,"attempting to write stanza to finished TagWriter");
-			return this;
-		} else {
-			if (!asyncStanzaWriter.isAlive()) {
-				try {
-					asyncStanzaWriter.start();
-				} catch (IllegalThreadStateException e) {
-					// already started
-				}
+			Log.d(Config.LOGTAG, "attempting to write to finished TagWriter");
+			return;
+		}
+		if (!asyncStanzaWriter.isAlive()) {
+			try {
+				asyncStanzaWriter.start();
+			} catch (IllegalThreadStateException e) {
+				// already started
 			}
-			writeQueue.add(stanza);
-			return this;
+		}
+		writeQueue.add(output);
+		final int depth = writeQueue.size();
+		if (depth > maxQueueDepth) {
+			maxQueueDepth = depth;
 		}
 	}
 
 	public void finish() {
 		this.finished = true;
+		writeQueue.add(WAKE_UP);
 	}
 
 	public boolean await(long timeout, TimeUnit timeunit) throws InterruptedException {
@@ -110,7 +175,31 @@ public class TagWriter {
 	}
 
 	public boolean isActive() {
-		return outputStream != null;
+		return outputStream != null && failure == null;
+	}
+
+	public int getQueueDepth() {
+		return writeQueue.size();
+	}
+
+	public int getMaxQueueDepth() {
+		return maxQueueDepth;
+	}
+
+	public int getLastBatchSize() {
+		return lastBatchSize;
+	}
+
+	public int getMaxBatchSize() {
+		return maxBatchSize;
+	}
+
+	public long getBatchesWritten() {
+		return batchesWritten.get();
+	}
+
+	public long getItemsWritten() {
+		return itemsWritten.get();
 	}
 
 	public synchronized void forceClose() {
@@ -55,14 +55,7 @@ public class XmlReader {
 					Tag tag = Tag.start(parser.getName());
 					final String xmlns = parser.getNamespace();
 					for (int i = 0; i < parser.getAttributeCount(); ++i) {
-						final String prefix = parser.getAttributePrefix(i);
-						String name;
-						if (prefix != null && !prefix.isEmpty()) {
-							name = prefix+":"+parser.getAttributeName(i);
-						} else {
-							name = parser.getAttributeName(i);
-						}
-						tag.setAttribute(name,parser.getAttributeValue(i));
+						tag.setAttribute(getAttributeName(i), parser.getAttributeValue(i));
 					}
 					if (xmlns != null) {
 						tag.setAttribute("xmlns", xmlns);
@@ -85,27 +78,62 @@ public class XmlReader {
 			IOException {
 		Element element = new Element(currentTag.getName());
 		element.setAttributes(currentTag.getAttributes());
-		Tag nextTag = this.readTag();
-		if (nextTag == null) {
-			throw new IOException("interrupted mid tag");
+		return readElement(element);
+	}
+
+	/**
+	 * Fills the given element with everything up to the end tag matching the start tag that has
+	 * just been read. Children are created straight from the parser events without going
+	 * through intermediate {@link Tag} objects.
+	 */
+	public <T extends Element> T readElement(final T element) throws IOException {
+		try {
+			readChildren(element);
+		} catch (IOException e) {
+			throw e;
+		} catch (Throwable throwable) {
+			throw new IOException("xml parser mishandled "+throwable.getClass().getSimpleName()+"("+throwable.getMessage()+")", throwable);
 		}
-		if (nextTag.isNo()) {
-			element.setContent(nextTag.getName());
-			nextTag = this.readTag();
-			if (nextTag == null) {
-				throw new IOException("interrupted mid tag");
+		return element;
+	}
+
+	private void readChildren(final Element element) throws XmlPullParserException, IOException {
+		boolean first = true;
+		while (this.is != null) {
+			switch (parser.next()) {
+				case XmlPullParser.START_TAG:
+					final Element child = new Element(parser.getName());
+					for (int i = 0; i < parser.getAttributeCount(); ++i) {
+						child.setAttribute(getAttributeName(i), parser.getAttributeValue(i));
+					}
+					final String xmlns = parser.getNamespace();
+					if (xmlns != null) {
+						child.setAttribute("xmlns", xmlns);
+					}
+					readChildren(child);
+					element.addChild(child);
+					break;
+				case XmlPullParser.TEXT:
+					if (first) {
+						element.setContent(parser.getText());
+					}
+					break;
+				case XmlPullParser.END_TAG:
+					return;
+				case XmlPullParser.END_DOCUMENT:
+					throw new IOException("interrupted mid tag");
 			}
+			first = false;
 		}
-		while (!nextTag.isEnd(element.getName())) {
-			if (!nextTag.isNo()) {
-				Element child = this.readElement(nextTag);
-				element.addChild(child);
-			}
-			nextTag = this.readTag();
-			if (nextTag == null) {
-				throw new IOException("interrupted mid tag");
-			}
+		throw new IOException("interrupted mid tag");
+	}
+
+	private String getAttributeName(final int i) {
+		final String prefix = parser.getAttributePrefix(i);
+		if (prefix != null && !prefix.isEmpty()) {
+			return prefix + ":" + parser.getAttributeName(i);
+		} else {
+			return parser.getAttributeName(i);
 		}
-		return element;
 	}
 }
@@ -0,0 +1,185 @@
+package eu.siacs.conversations.xmpp;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import eu.siacs.conversations.xmpp.stanzas.IqPacket;
+
+/**
+ * Callbacks of IQs that are waiting for a response. Lookups go through a ConcurrentHashMap so the
+ * reader never contends with senders on a single lock. Every request gets a deadline; deadlines of
+ * all accounts are tracked by one shared timer wheel that hands expired requests back to their
+ * registry, which then reports them to the {@link OnIqTimeout} listener.
+ */
+public class IqCallbackRegistry {
+
+	private static final TimerWheel TIMER_WHEEL = new TimerWheel();
+
+	private final ConcurrentHashMap<String, PendingIq> pending = new ConcurrentHashMap<>();
+	private final AtomicLong timedOut = new AtomicLong(0);
+	private final OnIqTimeout timeoutListener;
+
+	public IqCallbackRegistry(final OnIqTimeout timeoutListener) {
+		this.timeoutListener = timeoutListener;
+	}
+
+	public void put(final IqPacket packet, final OnIqPacketReceived callback, final long timeout) {
+		final PendingIq pendingIq = new PendingIq(this, packet, callback);
+		final PendingIq previous = pending.put(packet.getId(), pendingIq);
+		if (previous != null) {
+			previous.done.set(true);
+			TIMER_WHEEL.cancel(previous);
+		}
+		TIMER_WHEEL.schedule(pendingIq, timeout);
+	}
+
+	public PendingIq get(final String id) {
+		return id == null ? null : pending.get(id);
+	}
+
+	/**
+	 * @return true if the caller won the race against the timeout and may invoke the callback
+	 */
+	public boolean remove(final PendingIq pendingIq) {
+		if (pending.remove(pendingIq.packet.getId(), pendingIq)) {
+			pendingIq.done.set(true);
+			TIMER_WHEEL.cancel(pendingIq);
+			return true;
+		}
+		return false;
+	}
+
+	public List<PendingIq> clear() {
+		final ArrayList<PendingIq> removed = new ArrayList<>();
+		for (PendingIq pendingIq : pending.values()) {
+			if (remove(pendingIq)) {
+				removed.add(pendingIq);
+			}
+		}
+		return removed;
+	}
+
+	public int getInFlight() {
+		return pending.size();
+	}
+
+	public long getTimedOut() {
+		return timedOut.get();
+	}
+
+	private void expire(final PendingIq pendingIq) {
+		if (remove(pendingIq)) {
+			timedOut.incrementAndGet();
+			timeoutListener.onIqTimeout(pendingIq.packet, pendingIq.callback);
+		}
+	}
+
+	public interface OnIqTimeout {
+		void onIqTimeout(IqPacket request, OnIqPacketReceived callback);
+	}
+
+	public static class PendingIq {
+		public final IqPacket packet;
+		public final OnIqPacketReceived callback;
+		private final IqCallbackRegistry registry;
+		private final AtomicBoolean done = new AtomicBoolean(false);
+		private volatile HashSet<PendingIq> bucket;
+		private int rounds;
+
+		private PendingIq(final IqCallbackRegistry registry, final IqPacket packet, final OnIqPacketReceived callback) {
+			this.registry = registry;
+			this.packet = packet;
+			this.callback = callback;
+		}
+	}
+
+	/**
+	 * Hashed timer wheel with a resolution of one second. Answered requests are removed from their
+	 * bucket right away, so the wheel only holds requests that are still waiting for a response.
+	 */
+	private static class TimerWheel {
+
+		private static final long TICK = 1000;
+		private static final int SIZE = 64;
+
+		private final ArrayList<HashSet<PendingIq>> buckets = new ArrayList<>(SIZE);
+		private volatile int cursor = 0;
+		private ScheduledExecutorService executor = null;
+
+		private TimerWheel() {
+			for (int i = 0; i < SIZE; ++i) {
+				buckets.add(new HashSet<>());
+			}
+		}
+
+		private void schedule(final PendingIq pendingIq, final long timeout) {
+			final long ticks = Math.max(1, (timeout + TICK - 1) / TICK);
+			final HashSet<PendingIq> bucket = buckets.get((int) ((cursor + ticks) % SIZE));
+			synchronized (bucket) {
+				if (pendingIq.done.get()) {
+					//answered before it could be scheduled
+					return;
+				}
+				pendingIq.rounds = (int) ((ticks - 1) / SIZE);
+				pendingIq.bucket = bucket;
+				bucket.add(pendingIq);
+			}
+			start();
+		}
+
+		private void cancel(final PendingIq pendingIq) {
+			final HashSet<PendingIq> bucket = pendingIq.bucket;
+			if (bucket != null) {
+				synchronized (bucket) {
+					bucket.remove(pendingIq);
+				}
+			}
+		}
+
+		private synchronized void start() {
+			if (executor == null) {
+				executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+					final Thread thread = new Thread(runnable, "IqTimerWheel");
+					thread.setDaemon(true);
+					return thread;
+				});
+				executor.scheduleAtFixedRate(this::tick, TICK, TICK, TimeUnit.MILLISECONDS);
+			}
+		}
+
+		private void tick() {
+			final int next = (cursor + 1) % SIZE;
+			cursor = next;
+			final HashSet<PendingIq> bucket = buckets.get(next);
+			final ArrayList<PendingIq> expired = new ArrayList<>();
+			synchronized (bucket) {
+				for (Iterator<PendingIq> iterator = bucket.iterator(); iterator.hasNext(); ) {
+					final PendingIq pendingIq = iterator.next();
+					if (pendingIq.done.get()) {
+						iterator.remove();
+					} else if (pendingIq.rounds > 0) {
+						--pendingIq.rounds;
+					} else {
+						iterator.remove();
+						expired.add(pendingIq);
+					}
+				}
+			}
+			for (PendingIq pendingIq : expired) {
+				try {
+					pendingIq.registry.expire(pendingIq);
+				} catch (RuntimeException e) {
+					//a failing listener must not stop the wheel
+				}
+			}
+		}
+	}
+}
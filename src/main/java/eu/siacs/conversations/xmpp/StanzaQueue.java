@@ -0,0 +1,99 @@
+package eu.siacs.conversations.xmpp;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Ring buffer of unacknowledged stanzas keyed by their stream management sequence number.
+ * Sequence numbers are handed out monotonically so the buffer only ever needs to append at the
+ * tail and drop acknowledged stanzas from the head, both in constant time per stanza.
+ * Not thread safe; callers synchronize on the instance.
+ */
+public class StanzaQueue<T> {
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	private Object[] elements = new Object[INITIAL_CAPACITY];
+	private int head = 0;
+	private int size = 0;
+	private int firstSequence = 0;
+
+	public void append(final int sequence, final T element) {
+		if (size != 0 && sequence != firstSequence + size) {
+			throw new IllegalArgumentException("sequence " + sequence + " does not follow " + getLastSequence());
+		}
+		if (size == elements.length) {
+			grow();
+		}
+		if (size == 0) {
+			firstSequence = sequence;
+		}
+		elements[(head + size) & (elements.length - 1)] = element;
+		++size;
+	}
+
+	private void grow() {
+		final Object[] grown = new Object[elements.length * 2];
+		final int tail = elements.length - head;
+		System.arraycopy(elements, head, grown, 0, tail);
+		System.arraycopy(elements, 0, grown, tail, head);
+		elements = grown;
+		head = 0;
+	}
+
+	public int getFirstSequence() {
+		if (size == 0) {
+			throw new IllegalStateException("queue is empty");
+		}
+		return firstSequence;
+	}
+
+	public int getLastSequence() {
+		if (size == 0) {
+			throw new IllegalStateException("queue is empty");
+		}
+		return firstSequence + size - 1;
+	}
+
+	@SuppressWarnings("unchecked")
+	public T removeFirst() {
+		if (size == 0) {
+			throw new IllegalStateException("queue is empty");
+		}
+		final T element = (T) elements[head];
+		elements[head] = null;
+		head = (head + 1) & (elements.length - 1);
+		--size;
+		++firstSequence;
+		return element;
+	}
+
+	@SuppressWarnings("unchecked")
+	public List<T> values() {
+		final ArrayList<T> values = new ArrayList<>(size);
+		for (int i = 0; i < size; ++i) {
+			values.add((T) elements[(head + i) & (elements.length - 1)]);
+		}
+		return values;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public void clear() {
+		if (elements.length > INITIAL_CAPACITY) {
+			elements = new Object[INITIAL_CAPACITY];
+		} else {
+			for (int i = 0; i < size; ++i) {
+				elements[(head + i) & (elements.length - 1)] = null;
+			}
+		}
+		head = 0;
+		size = 0;
+	}
+}
@@ -0,0 +1,163 @@
+package eu.siacs.conversations.xmpp;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * zlib stream compression as negotiated by XEP-0138. One instance covers one compressed stream
+ * and keeps track of the bytes going in and out of the compressor as well as the time spent
+ * compressing and decompressing. Time spent blocking on the underlying socket is not counted.
+ * The compressing side is used by the writer thread of the TagWriter; {@link #end()} waits for a
+ * write in progress and makes later writes fail, so the native deflater is never used after it
+ * has been freed.
+ */
+public class StreamCompression {
+
+	public static final String METHOD = "zlib";
+
+	private static final int BUFFER_SIZE = 4096;
+
+	private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+	private final Inflater inflater = new Inflater();
+	private boolean ended = false;
+
+	private final AtomicLong uncompressedOut = new AtomicLong(0);
+	private final AtomicLong compressedOut = new AtomicLong(0);
+	private final AtomicLong compressedIn = new AtomicLong(0);
+	private final AtomicLong uncompressedIn = new AtomicLong(0);
+	private final AtomicLong deflateNanos = new AtomicLong(0);
+	private final AtomicLong inflateNanos = new AtomicLong(0);
+
+	public InputStream wrap(final InputStream inputStream) {
+		return new InflaterInputStream(inputStream, inflater, BUFFER_SIZE) {
+
+			private long fillNanos = 0;
+
+			@Override
+			protected void fill() throws IOException {
+				final long start = System.nanoTime();
+				super.fill();
+				compressedIn.addAndGet(len);
+				fillNanos += System.nanoTime() - start;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				final long start = System.nanoTime();
+				fillNanos = 0;
+				final int count = super.read(b, off, len);
+				inflateNanos.addAndGet(System.nanoTime() - start - fillNanos);
+				if (count > 0) {
+					uncompressedIn.addAndGet(count);
+				}
+				return count;
+			}
+		};
+	}
+
+	public OutputStream wrap(final OutputStream outputStream) {
+		final CountingOutputStream counting = new CountingOutputStream(outputStream);
+		return new DeflaterOutputStream(counting, deflater, BUFFER_SIZE, true) {
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				synchronized (deflater) {
+					checkNotEnded();
+					final long start = System.nanoTime();
+					counting.nanos = 0;
+					super.write(b, off, len);
+					deflateNanos.addAndGet(System.nanoTime() - start - counting.nanos);
+					uncompressedOut.addAndGet(len);
+				}
+			}
+
+			@Override
+			public void flush() throws IOException {
+				synchronized (deflater) {
+					checkNotEnded();
+					final long start = System.nanoTime();
+					counting.nanos = 0;
+					super.flush();
+					deflateNanos.addAndGet(System.nanoTime() - start - counting.nanos);
+				}
+			}
+
+			@Override
+			public void close() throws IOException {
+				synchronized (deflater) {
+					if (ended) {
+						out.close();
+					} else {
+						super.close();
+					}
+				}
+			}
+		};
+	}
+
+	public long getUncompressedBytes() {
+		return uncompressedOut.get() + uncompressedIn.get();
+	}
+
+	public long getCompressedBytes() {
+		return compressedOut.get() + compressedIn.get();
+	}
+
+	public double getRatio() {
+		final long compressed = getCompressedBytes();
+		return compressed == 0 ? 1.0 : (double) getUncompressedBytes() / compressed;
+	}
+
+	public long getCpuTimeMillis() {
+		return (deflateNanos.get() + inflateNanos.get()) / 1000000L;
+	}
+
+	private void checkNotEnded() throws IOException {
+		if (ended) {
+			throw new IOException("stream compression has ended");
+		}
+	}
+
+	public void end() {
+		synchronized (deflater) {
+			ended = true;
+			deflater.end();
+		}
+		inflater.end();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s in=%d/%d out=%d/%d cpu=%dms", METHOD, compressedIn.get(), uncompressedIn.get(), compressedOut.get(), uncompressedOut.get(), getCpuTimeMillis());
+	}
+
+	private class CountingOutputStream extends FilterOutputStream {
+
+		private long nanos = 0;
+
+		private CountingOutputStream(final OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			final long start = System.nanoTime();
+			out.write(b, off, len);
+			compressedOut.addAndGet(len);
+			nanos += System.nanoTime() - start;
+		}
+
+		@Override
+		public void flush() throws IOException {
+			final long start = System.nanoTime();
+			out.flush();
+			nanos += System.nanoTime() - start;
+		}
+	}
+}
@@ -3,19 +3,20 @@ package eu.siacs.conversations.xmpp;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.os.Build;
 import android.os.SystemClock;
 import android.security.KeyChain;
 import android.support.annotation.NonNull;
 import android.util.Base64;
 import android.util.Log;
 import android.util.Pair;
-import android.util.SparseArray;
 
 import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.net.ConnectException;
 import java.net.IDN;
 import java.net.InetAddress;
@@ -34,7 +35,6 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map.Entry;
@@ -73,6 +73,7 @@ import eu.siacs.conversations.services.MemorizingTrustManager;
 import eu.siacs.conversations.services.MessageArchiveService;
 import eu.siacs.conversations.services.NotificationService;
 import eu.siacs.conversations.services.XmppConnectionService;
+import eu.siacs.conversations.utils.BoundedSerialExecutor;
 import eu.siacs.conversations.utils.CryptoHelper;
 import eu.siacs.conversations.utils.Patterns;
 import eu.siacs.conversations.utils.Resolver;
@@ -106,6 +107,7 @@ public class XmppConnection implements Runnable {
     private static final int PACKET_IQ = 0;
     private static final int PACKET_MESSAGE = 1;
     private static final int PACKET_PRESENCE = 2;
+    private static final int STANZA_PIPELINE_CAPACITY = 512;
     public final OnIqPacketReceived registrationResponseListener = new OnIqPacketReceived() {
         @Override
         public void onIqPacketReceived(Account account, IqPacket packet) {
@@ -136,11 +138,15 @@ public class XmppConnection implements Runnable {
     protected final Account account;
     private final Features features = new Features(this);
     private final HashMap<Jid, ServiceDiscoveryResult> disco = new HashMap<>();
-    private final SparseArray<AbstractAcknowledgeableStanza> mStanzaQueue = new SparseArray<>();
-    private final Hashtable<String, Pair<IqPacket, OnIqPacketReceived>> packetCallbacks = new Hashtable<>();
+    private final StanzaQueue<AbstractAcknowledgeableStanza> mStanzaQueue = new StanzaQueue<>();
+    private final IqCallbackRegistry packetCallbacks = new IqCallbackRegistry(this::onIqTimeout);
     private final Set<OnAdvancedStreamFeaturesLoaded> advancedStreamFeaturesLoadedListeners = new HashSet<>();
     private final XmppConnectionService mXmppConnectionService;
+    private final BoundedSerialExecutor mStanzaPipeline;
     private Socket socket;
+    private Socket streamSocket;
+    private StreamCompression streamCompression = null;
+    private boolean compressionFailed = false;
     private XmlReader tagReader;
     private TagWriter tagWriter = new TagWriter();
     private boolean shouldAuthenticate = true;
@@ -180,6 +186,7 @@ public class XmppConnection implements Runnable {
     public XmppConnection(final Account account, final XmppConnectionService service) {
         this.account = account;
         this.mXmppConnectionService = service;
+        this.mStanzaPipeline = new BoundedSerialExecutor("StanzaPipeline-" + account.getJid().asBareJid(), STANZA_PIPELINE_CAPACITY);
     }
 
     private static void fixResource(Context context, Account account) {
@@ -244,11 +251,21 @@ public class XmppConnection implements Runnable {
     }
 
     protected void connect() {
+        //stanzas of the previous session must not be handled concurrently with the inline handling
+        //of the new one (bind, roster, carbons). they have been read already, so they are run
+        //rather than dropped
+        try {
+            mStanzaPipeline.awaitIdle();
+        } catch (InterruptedException e) {
+            Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": aborting connect because thread was interrupted while draining stanza pipeline");
+            return;
+        }
         if (mXmppConnectionService.areMessagesInitialized()) {
             mXmppConnectionService.resetSendingToWaiting(account);
         }
         Log.d(Config.LOGTAG, account.getJid().asBareJid().toString() + ": connecting");
         features.encryptionEnabled = false;
+        compressionFailed = false;
         inSmacksSession = false;
         isBound = false;
         this.attempt++;
@@ -396,6 +413,7 @@ public class XmppConnection implements Runnable {
             } else {
                 Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": not force closing socket because thread was interrupted");
             }
+            endStreamCompression();
         }
     }
 
@@ -409,6 +427,8 @@ public class XmppConnection implements Runnable {
             throw new InterruptedException();
         }
         this.socket = socket;
+        this.streamSocket = socket;
+        endStreamCompression();
         tagReader = new XmlReader();
         if (tagWriter != null) {
             tagWriter.forceClose();
@@ -468,6 +488,8 @@ public class XmppConnection implements Runnable {
                 processStreamFeatures(nextTag);
             } else if (nextTag.isStart("proceed")) {
                 switchOverToTls();
+            } else if (nextTag.isStart("compressed")) {
+                switchOverToCompression(nextTag);
             } else if (nextTag.isStart("success")) {
                 final String challenge = tagReader.readElement(nextTag).getContent();
                 try {
@@ -509,6 +531,10 @@ public class XmppConnection implements Runnable {
                     throw new StateChangingException(Account.State.UNAUTHORIZED);
                 } else if (Namespace.TLS.equals(failure.getNamespace())) {
                     throw new StateChangingException(Account.State.TLS_ERROR);
+                } else if (Namespace.COMPRESSION.equals(failure.getNamespace())) {
+                    Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": stream compression failed " + XmlHelper.printElementNames(failure));
+                    this.compressionFailed = true;
+                    negotiateStreamFeatures();
                 } else {
                     throw new StateChangingException(Account.State.INCOMPATIBLE_SERVER);
                 }
@@ -545,7 +571,7 @@ public class XmppConnection implements Runnable {
                 final Element resumed = tagReader.readElement(nextTag);
                 final String h = resumed.getAttribute("h");
                 try {
-                    ArrayList<AbstractAcknowledgeableStanza> failedStanzas = new ArrayList<>();
+                    final List<AbstractAcknowledgeableStanza> failedStanzas;
                     final boolean acknowledgedMessages;
                     synchronized (this.mStanzaQueue) {
                         final int serverCount = Integer.parseInt(h);
@@ -557,9 +583,7 @@ public class XmppConnection implements Runnable {
                             Log.d(Config.LOGTAG, account.getJid().asBareJid().toString() + ": session resumed");
                         }
                         acknowledgedMessages = acknowledgeStanzaUpTo(serverCount);
-                        for (int i = 0; i < this.mStanzaQueue.size(); ++i) {
-                            failedStanzas.add(mStanzaQueue.valueAt(i));
-                        }
+                        failedStanzas = mStanzaQueue.values();
                         mStanzaQueue.clear();
                     }
                     if (acknowledgedMessages) {
@@ -582,27 +606,39 @@ public class XmppConnection implements Runnable {
                 changeStatus(Account.State.ONLINE);
             } else if (nextTag.isStart("r")) {
                 tagReader.readElement(nextTag);
-                if (Config.EXTENDED_SM_LOGGING) {
-                    Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": acknowledging stanza #" + this.stanzasReceived);
-                }
-                final AckPacket ack = new AckPacket(this.stanzasReceived, smVersion);
-                tagWriter.writeStanzaAsync(ack);
+                final int stanzasReceived = this.stanzasReceived;
+                final TagWriter tagWriter = this.tagWriter;
+                //acknowledge only once every stanza up to here has been handled and persisted
+                dispatch(() -> {
+                    if (!mXmppConnectionService.databaseBackend.flushPendingMessages()) {
+                        Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": not acknowledging stanza #" + stanzasReceived + " because messages could not be persisted");
+                        return;
+                    }
+                    if (Config.EXTENDED_SM_LOGGING) {
+                        Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": acknowledging stanza #" + stanzasReceived);
+                    }
+                    final AckPacket ack = new AckPacket(stanzasReceived, smVersion);
+                    tagWriter.writeStanzaAsync(ack);
+                });
             } else if (nextTag.isStart("a")) {
-                boolean accountUiNeedsRefresh = false;
-                synchronized (NotificationService.CATCHUP_LOCK) {
-                    if (mWaitingForSmCatchup.compareAndSet(true, false)) {
-                        final int messageCount = mSmCatchupMessageCounter.get();
-                        final int pendingIQs = packetCallbacks.size();
-                        Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": SM catchup complete (messages=" + messageCount + ", pending IQs="+pendingIQs+")");
-                        accountUiNeedsRefresh = true;
-                        if (messageCount > 0) {
-                            mXmppConnectionService.getNotificationService().finishBacklog(true, account);
+                final TagWriter tagWriter = this.tagWriter;
+                dispatch(() -> {
+                    boolean accountUiNeedsRefresh = false;
+                    synchronized (NotificationService.CATCHUP_LOCK) {
+                        if (mWaitingForSmCatchup.compareAndSet(true, false)) {
+                            final int messageCount = mSmCatchupMessageCounter.get();
+                            final int pendingIQs = packetCallbacks.getInFlight();
+                            Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": SM catchup complete (messages=" + messageCount + ", pending IQs=" + pendingIQs + ", timed out IQs=" + packetCallbacks.getTimedOut() + ", " + getWriteStatistics(tagWriter) + ", stanza pipeline " + mStanzaPipeline + ")");
+                            accountUiNeedsRefresh = true;
+                            if (messageCount > 0) {
+                                mXmppConnectionService.getNotificationService().finishBacklog(true, account);
+                            }
                         }
                     }
-                }
-                if (accountUiNeedsRefresh) {
-                    mXmppConnectionService.updateAccountUi();
-                }
+                    if (accountUiNeedsRefresh) {
+                        mXmppConnectionService.updateAccountUi();
+                    }
+                });
                 final Element ack = tagReader.readElement(nextTag);
                 lastPacketReceived = SystemClock.elapsedRealtime();
                 try {
@@ -653,18 +689,14 @@ public class XmppConnection implements Runnable {
             Log.e(Config.LOGTAG, "server acknowledged more stanzas than we sent. serverCount=" + serverCount + ", ourCount=" + stanzasSent);
         }
         boolean acknowledgedMessages = false;
-        for (int i = 0; i < mStanzaQueue.size(); ++i) {
-            if (serverCount >= mStanzaQueue.keyAt(i)) {
-                if (Config.EXTENDED_SM_LOGGING) {
-                    Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": server acknowledged stanza #" + mStanzaQueue.keyAt(i));
-                }
-                AbstractAcknowledgeableStanza stanza = mStanzaQueue.valueAt(i);
-                if (stanza instanceof MessagePacket && acknowledgedListener != null) {
-                    MessagePacket packet = (MessagePacket) stanza;
-                    acknowledgedMessages |= acknowledgedListener.onMessageAcknowledged(account, packet.getId());
-                }
-                mStanzaQueue.removeAt(i);
-                i--;
+        while (!mStanzaQueue.isEmpty() && serverCount >= mStanzaQueue.getFirstSequence()) {
+            if (Config.EXTENDED_SM_LOGGING) {
+                Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": server acknowledged stanza #" + mStanzaQueue.getFirstSequence());
+            }
+            final AbstractAcknowledgeableStanza stanza = mStanzaQueue.removeFirst();
+            if (stanza instanceof MessagePacket && acknowledgedListener != null) {
+                MessagePacket packet = (MessagePacket) stanza;
+                acknowledgedMessages |= acknowledgedListener.onMessageAcknowledged(account, packet.getId());
             }
         }
         return acknowledgedMessages;
@@ -687,26 +719,16 @@ public class XmppConnection implements Runnable {
                 throw new AssertionError("Should never encounter invalid type");
         }
         element.setAttributes(currentTag.getAttributes());
-        Tag nextTag = tagReader.readTag();
-        if (nextTag == null) {
-            throw new IOException("interrupted mid tag");
-        }
-        while (!nextTag.isEnd(element.getName())) {
-            if (!nextTag.isNo()) {
-                final Element child = tagReader.readElement(nextTag);
-                final String type = currentTag.getAttribute("type");
-                if (packetType == PACKET_IQ
-                        && "jingle".equals(child.getName())
-                        && ("set".equalsIgnoreCase(type) || "get"
-                        .equalsIgnoreCase(type))) {
-                    element = new JinglePacket();
-                    element.setAttributes(currentTag.getAttributes());
+        tagReader.readElement(element);
+        if (packetType == PACKET_IQ) {
+            final String type = currentTag.getAttribute("type");
+            if (("set".equalsIgnoreCase(type) || "get".equalsIgnoreCase(type)) && element.hasChild("jingle")) {
+                final Element jingle = new JinglePacket();
+                jingle.setAttributes(currentTag.getAttributes());
+                for (final Element child : element.getChildren()) {
+                    jingle.addChild(child);
                 }
-                element.addChild(child);
-            }
-            nextTag = tagReader.readTag();
-            if (nextTag == null) {
-                throw new IOException("interrupted mid tag");
+                element = jingle;
             }
         }
         if (stanzasReceived == Integer.MAX_VALUE) {
@@ -725,6 +747,36 @@ public class XmppConnection implements Runnable {
         return element;
     }
 
+    /**
+     * Stanza handlers run inline on the reader thread until the session is established. After
+     * that they are handed off to the per account stanza pipeline, so slow handlers (database,
+     * OMEMO) no longer stall reading. The pipeline preserves the order in which stanzas arrived.
+     */
+    private void dispatch(final Runnable runnable) throws IOException {
+        if (account.getStatus() == Account.State.ONLINE) {
+            try {
+                mStanzaPipeline.execute(() -> {
+                    try {
+                        runnable.run();
+                    } catch (StateChangingError error) {
+                        //only the callbacks of registration, bind and session requests raise this.
+                        //those are answered before the account is ONLINE and are therefore handled
+                        //inline, where the error still tears down the connection
+                        Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": ignoring StateChangingError(" + error.state + ") on stanza pipeline");
+                    }
+                });
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("interrupted while waiting for stanza pipeline");
+            }
+        } else {
+            try {
+                runnable.run();
+            } catch (StateChangingError error) {
+                throw new StateChangingException(error.state);
+            }
+        }
+    }
+
     private void processIq(final Tag currentTag) throws XmlPullParserException, IOException {
         final IqPacket packet = (IqPacket) processPacket(currentTag, PACKET_IQ);
         if (!packet.valid()) {
@@ -732,42 +784,46 @@ public class XmppConnection implements Runnable {
             return;
         }
         if (packet instanceof JinglePacket) {
-            if (this.jingleListener != null) {
-                this.jingleListener.onJinglePacketReceived(account, (JinglePacket) packet);
+            final OnJinglePacketReceived jingleListener = this.jingleListener;
+            if (jingleListener != null) {
+                dispatch(() -> jingleListener.onJinglePacketReceived(account, (JinglePacket) packet));
             }
-        } else {
-            OnIqPacketReceived callback = null;
-            synchronized (this.packetCallbacks) {
-                if (packetCallbacks.containsKey(packet.getId())) {
-                    final Pair<IqPacket, OnIqPacketReceived> packetCallbackDuple = packetCallbacks.get(packet.getId());
-                    // Packets to the server should have responses from the server
-                    if (packetCallbackDuple.first.toServer(account)) {
-                        if (packet.fromServer(account)) {
-                            callback = packetCallbackDuple.second;
-                            packetCallbacks.remove(packet.getId());
-                        } else {
-                            Log.e(Config.LOGTAG, account.getJid().asBareJid().toString() + ": ignoring spoofed iq packet");
-                        }
-                    } else {
-                        if (packet.getFrom() != null && packet.getFrom().equals(packetCallbackDuple.first.getTo())) {
-                            callback = packetCallbackDuple.second;
-                            packetCallbacks.remove(packet.getId());
-                        } else {
-                            Log.e(Config.LOGTAG, account.getJid().asBareJid().toString() + ": ignoring spoofed iq packet");
-                        }
+            return;
+        }
+        //responses are matched here on the reader thread; time spent queued on the stanza pipeline
+        //behind other stanzas (a MAM page for example) must not let the request time out
+        final OnIqPacketReceived callback = findIqCallback(packet);
+        if (callback != null) {
+            dispatch(() -> callback.onIqPacketReceived(account, packet));
+        }
+    }
+
+    private OnIqPacketReceived findIqCallback(final IqPacket packet) {
+        OnIqPacketReceived callback = null;
+        final IqCallbackRegistry.PendingIq pendingIq = packetCallbacks.get(packet.getId());
+        if (pendingIq != null) {
+            // Packets to the server should have responses from the server
+            if (pendingIq.packet.toServer(account)) {
+                if (packet.fromServer(account)) {
+                    if (packetCallbacks.remove(pendingIq)) {
+                        callback = pendingIq.callback;
                     }
-                } else if (packet.getType() == IqPacket.TYPE.GET || packet.getType() == IqPacket.TYPE.SET) {
-                    callback = this.unregisteredIqListener;
+                } else {
+                    Log.e(Config.LOGTAG, account.getJid().asBareJid().toString() + ": ignoring spoofed iq packet");
                 }
-            }
-            if (callback != null) {
-                try {
-                    callback.onIqPacketReceived(account, packet);
-                } catch (StateChangingError error) {
-                    throw new StateChangingException(error.state);
+            } else {
+                if (packet.getFrom() != null && packet.getFrom().equals(pendingIq.packet.getTo())) {
+                    if (packetCallbacks.remove(pendingIq)) {
+                        callback = pendingIq.callback;
+                    }
+                } else {
+                    Log.e(Config.LOGTAG, account.getJid().asBareJid().toString() + ": ignoring spoofed iq packet");
                 }
             }
+        } else if (packet.getType() == IqPacket.TYPE.GET || packet.getType() == IqPacket.TYPE.SET) {
+            callback = this.unregisteredIqListener;
         }
+        return callback;
     }
 
     private void processMessage(final Tag currentTag) throws XmlPullParserException, IOException {
@@ -776,7 +832,7 @@ public class XmppConnection implements Runnable {
             Log.e(Config.LOGTAG, "encountered invalid message from='" + packet.getFrom() + "' to='" + packet.getTo() + "'");
             return;
         }
-        this.messageListener.onMessagePacketReceived(account, packet);
+        dispatch(() -> this.messageListener.onMessagePacketReceived(account, packet));
     }
 
     private void processPresence(final Tag currentTag) throws XmlPullParserException, IOException {
@@ -785,7 +841,7 @@ public class XmppConnection implements Runnable {
             Log.e(Config.LOGTAG, "encountered invalid presence from='" + packet.getFrom() + "' to='" + packet.getTo() + "'");
             return;
         }
-        this.presenceListener.onPresencePacketReceived(account, packet);
+        dispatch(() -> this.presenceListener.onPresencePacketReceived(account, packet));
     }
 
     private void sendStartTLS() throws IOException {
@@ -819,6 +875,7 @@ public class XmppConnection implements Runnable {
                 Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": TLS certificate verification failed");
                 throw new StateChangingException(Account.State.TLS_ERROR);
             }
+            this.streamSocket = sslSocket;
             tagReader.setInputStream(sslSocket.getInputStream());
             tagWriter.setOutputStream(sslSocket.getOutputStream());
             sendStartStream();
@@ -838,8 +895,65 @@ public class XmppConnection implements Runnable {
         }
     }
 
+    private void switchOverToCompression(final Tag currentTag) throws XmlPullParserException, IOException {
+        tagReader.readElement(currentTag);
+        final Socket socket = this.streamSocket;
+        if (socket == null) {
+            throw new IOException("could not setup stream compression");
+        }
+        final StreamCompression compression = new StreamCompression();
+        this.streamCompression = compression;
+        tagReader.setInputStream(compression.wrap(socket.getInputStream()));
+        tagWriter.setOutputStream(compression.wrap(socket.getOutputStream()));
+        sendStartStream();
+        Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": stream compression (" + StreamCompression.METHOD + ") enabled");
+        final Tag tag = tagReader.readTag();
+        if (tag != null && tag.isStart("stream")) {
+            processStream();
+        } else {
+            throw new StateChangingException(Account.State.STREAM_OPENING_ERROR);
+        }
+    }
+
+    private void endStreamCompression() {
+        final StreamCompression compression = this.streamCompression;
+        if (compression != null) {
+            Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": ending stream compression " + compression + String.format(" ratio=%.2f", compression.getRatio()));
+            this.streamCompression = null;
+            //the writer thread must not touch the deflater once it has been ended
+            final TagWriter tagWriter = this.tagWriter;
+            if (tagWriter != null) {
+                tagWriter.forceClose();
+            }
+            compression.end();
+        }
+    }
+
+    private void sendCompressionRequest() throws IOException {
+        final Element compress = new Element("compress", Namespace.COMPRESSION);
+        compress.addChild("method").setContent(StreamCompression.METHOD);
+        tagWriter.writeElement(compress);
+    }
+
+    private boolean offersZlibCompression() {
+        final Element compression = this.streamFeatures.findChild("compression", Namespace.COMPRESSION_FEATURE);
+        if (compression == null) {
+            return false;
+        }
+        for (Element method : compression.getChildren()) {
+            if ("method".equals(method.getName()) && StreamCompression.METHOD.equals(method.getContent())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     private void processStreamFeatures(final Tag currentTag) throws XmlPullParserException, IOException {
         this.streamFeatures = tagReader.readElement(currentTag);
+        negotiateStreamFeatures();
+    }
+
+    private void negotiateStreamFeatures() throws IOException {
         final boolean isSecure = features.encryptionEnabled || Config.ALLOW_NON_TLS_CONNECTIONS || account.isOnion();
         final boolean needsBinding = !isBound && !account.isOptionSet(Account.OPTION_REGISTER);
         if (this.streamFeatures.hasChild("starttls") && !features.encryptionEnabled) {
@@ -855,6 +969,12 @@ public class XmppConnection implements Runnable {
             throw new StateChangingException(Account.State.REGISTRATION_NOT_SUPPORTED);
         } else if (this.streamFeatures.hasChild("mechanisms") && shouldAuthenticate && isSecure) {
             authenticate();
+        } else if (Config.USE_STREAM_COMPRESSION
+                && Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT
+                && streamCompression == null
+                && !compressionFailed
+                && offersZlibCompression()) {
+            sendCompressionRequest();
         } else if (this.streamFeatures.hasChild("sm", "urn:xmpp:sm:" + smVersion) && streamId != null) {
             if (Config.EXTENDED_SM_LOGGING) {
                 Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": resuming after stanza #" + stanzasReceived);
@@ -1013,8 +1133,10 @@ public class XmppConnection implements Runnable {
         resetAttemptCount(true);
         resetStreamId();
         clearIqCallbacks();
-        this.stanzasSent = 0;
-        mStanzaQueue.clear();
+        synchronized (this.mStanzaQueue) {
+            this.stanzasSent = 0;
+            mStanzaQueue.clear();
+        }
         this.redirectionUrl = null;
         synchronized (this.disco) {
             disco.clear();
@@ -1082,28 +1204,35 @@ public class XmppConnection implements Runnable {
 
     private void clearIqCallbacks() {
         final IqPacket failurePacket = new IqPacket(IqPacket.TYPE.TIMEOUT);
-        final ArrayList<OnIqPacketReceived> callbacks = new ArrayList<>();
-        synchronized (this.packetCallbacks) {
-            if (this.packetCallbacks.size() == 0) {
-                return;
-            }
-            Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": clearing " + this.packetCallbacks.size() + " iq callbacks");
-            final Iterator<Pair<IqPacket, OnIqPacketReceived>> iterator = this.packetCallbacks.values().iterator();
-            while (iterator.hasNext()) {
-                Pair<IqPacket, OnIqPacketReceived> entry = iterator.next();
-                callbacks.add(entry.second);
-                iterator.remove();
-            }
+        if (this.packetCallbacks.getInFlight() == 0) {
+            return;
         }
-        for (OnIqPacketReceived callback : callbacks) {
+        final List<IqCallbackRegistry.PendingIq> callbacks = this.packetCallbacks.clear();
+        Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": clearing " + callbacks.size() + " iq callbacks");
+        for (IqCallbackRegistry.PendingIq pendingIq : callbacks) {
             try {
-                callback.onIqPacketReceived(account, failurePacket);
+                pendingIq.callback.onIqPacketReceived(account, failurePacket);
             } catch (StateChangingError error) {
                 Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": caught StateChangingError(" + error.state.toString() + ") while clearing callbacks");
                 //ignore
             }
         }
-        Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": done clearing iq callbacks. " + this.packetCallbacks.size() + " left");
+        Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": done clearing iq callbacks. " + this.packetCallbacks.getInFlight() + " left");
+    }
+
+    private void onIqTimeout(final IqPacket request, final OnIqPacketReceived callback) {
+        Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": iq " + request.getId() + " to " + request.getTo() + " timed out");
+        final IqPacket timeout = new IqPacket(IqPacket.TYPE.TIMEOUT);
+        timeout.setAttribute("id", request.getId());
+        timeout.setFrom(request.getTo());
+        //runs on the timer thread shared by all accounts, which must not wait for a full pipeline
+        mStanzaPipeline.executeNonBlocking(() -> {
+            try {
+                callback.onIqPacketReceived(account, timeout);
+            } catch (StateChangingError error) {
+                Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": caught StateChangingError(" + error.state.toString() + ") on iq timeout");
+            }
+        });
     }
 
     public void sendDiscoTimeout() {
@@ -1350,18 +1479,24 @@ public class XmppConnection implements Runnable {
     }
 
     public String sendIqPacket(final IqPacket packet, final OnIqPacketReceived callback) {
+        return sendIqPacket(packet, callback, Config.IQ_TIMEOUT);
+    }
+
+    public String sendIqPacket(final IqPacket packet, final OnIqPacketReceived callback, final int timeout) {
         packet.setFrom(account.getJid());
-        return this.sendUnmodifiedIqPacket(packet, callback, false);
+        return this.sendUnmodifiedIqPacket(packet, callback, false, timeout);
     }
 
-    public synchronized String sendUnmodifiedIqPacket(final IqPacket packet, final OnIqPacketReceived callback, boolean force) {
+    public String sendUnmodifiedIqPacket(final IqPacket packet, final OnIqPacketReceived callback, boolean force) {
+        return sendUnmodifiedIqPacket(packet, callback, force, Config.IQ_TIMEOUT);
+    }
+
+    private synchronized String sendUnmodifiedIqPacket(final IqPacket packet, final OnIqPacketReceived callback, boolean force, final int timeout) {
         if (packet.getId() == null) {
             packet.setAttribute("id", nextRandomId());
         }
         if (callback != null) {
-            synchronized (this.packetCallbacks) {
-                packetCallbacks.put(packet.getId(), new Pair<>(packet, callback));
-            }
+            packetCallbacks.put(packet, callback, timeout * 1000L);
         }
         this.sendPacket(packet, force);
         return packet.getId();
@@ -1394,8 +1529,8 @@ public class XmppConnection implements Runnable {
             if (packet instanceof AbstractAcknowledgeableStanza) {
                 AbstractAcknowledgeableStanza stanza = (AbstractAcknowledgeableStanza) packet;
 
-                if (this.mStanzaQueue.size() != 0) {
-                    int currentHighestKey = this.mStanzaQueue.keyAt(this.mStanzaQueue.size() - 1);
+                if (!this.mStanzaQueue.isEmpty()) {
+                    int currentHighestKey = this.mStanzaQueue.getLastSequence();
                     if (currentHighestKey != stanzasSent) {
                         throw new AssertionError("Stanza count messed up");
                     }
@@ -1485,13 +1620,13 @@ public class XmppConnection implements Runnable {
         } else {
             final TagWriter currentTagWriter = this.tagWriter;
             if (currentTagWriter.isActive()) {
-                currentTagWriter.finish();
                 final Socket currentSocket = this.socket;
                 final CountDownLatch streamCountDownLatch = this.mStreamCountDownLatch;
                 try {
-                    currentTagWriter.await(1, TimeUnit.SECONDS);
-                    Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": closing stream");
+                    Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": closing stream (" + getWriteStatistics(currentTagWriter) + ")");
                     currentTagWriter.writeTag(Tag.end("stream:stream"));
+                    currentTagWriter.finish();
+                    currentTagWriter.await(1, TimeUnit.SECONDS);
                     if (streamCountDownLatch != null) {
                         if (streamCountDownLatch.await(1, TimeUnit.SECONDS)) {
                             Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": remote ended stream");
@@ -1512,6 +1647,16 @@ public class XmppConnection implements Runnable {
         }
     }
 
+    private static String getWriteStatistics(final TagWriter tagWriter) {
+        final long batches = tagWriter.getBatchesWritten();
+        final long items = tagWriter.getItemsWritten();
+        return "write batches=" + batches
+                + ", avg batch=" + (batches == 0 ? 0 : items / batches)
+                + ", max batch=" + tagWriter.getMaxBatchSize()
+                + ", queue depth=" + tagWriter.getQueueDepth()
+                + ", max queue depth=" + tagWriter.getMaxQueueDepth();
+    }
+
     private void resetStreamId() {
         this.streamId = null;
     }
@@ -1586,6 +1731,22 @@ public class XmppConnection implements Runnable {
         return this.features;
     }
 
+    public StreamCompression getStreamCompression() {
+        return this.streamCompression;
+    }
+
+    public BoundedSerialExecutor getStanzaPipeline() {
+        return this.mStanzaPipeline;
+    }
+
+    public int getPendingIqCount() {
+        return this.packetCallbacks.getInFlight();
+    }
+
+    public long getTimedOutIqCount() {
+        return this.packetCallbacks.getTimedOut();
+    }
+
     public long getLastSessionEstablished() {
         final long diff = SystemClock.elapsedRealtime() - this.lastSessionStarted;
         return System.currentTimeMillis() - diff;
@@ -2,6 +2,8 @@ package eu.siacs.conversations.xmpp.jingle.stanzas;
 
 import android.util.Base64;
 
+import java.io.IOException;
+
 import eu.siacs.conversations.xml.Element;
 import eu.siacs.conversations.xmpp.stanzas.IqPacket;
 import rocks.xmpp.addr.Jid;
@@ -84,9 +86,9 @@ public class JinglePacket extends IqPacket {
 	}
 
 	@Override
-	public String toString() {
+	public void appendTo(final Appendable output) throws IOException {
 		this.build();
-		return super.toString();
+		super.appendTo(output);
 	}
 
 	public void setAction(String action) {